@@ -0,0 +1,197 @@
+package Document;
+
+import java.util.Arrays;
+
+/**
+ * In-memory mirror of the .sav block allocation table (FAT).
+ * <p>
+ * Keeps per-song block counts, a free-block bitmap and per-song block bitmaps,
+ * so that block queries do not have to rescan the FAT. The index is built once
+ * from work RAM and must then be kept up to date through allocate() and free()
+ * whenever the FAT is written.
+ */
+class BlockAllocationIndex implements Cloneable {
+    static final int SONG_COUNT = 0x20;
+
+    private final int blockCount;
+    private long[] freeBlocks;
+    private long[][] songBlocks;
+    private int[] songBlockCounts;
+    private int freeBlockCount;
+
+    BlockAllocationIndex(byte[] workRam, int blockAllocTableStartPtr, int blockCount) {
+        this.blockCount = blockCount;
+        int words = (blockCount + 63) >>> 6;
+        freeBlocks = new long[words];
+        songBlocks = new long[SONG_COUNT][words];
+        songBlockCounts = new int[SONG_COUNT];
+
+        for (int block = 0; block < blockCount; ++block) {
+            int tableValue = workRam[blockAllocTableStartPtr + block];
+            if (tableValue < 0 || tableValue >= SONG_COUNT) {
+                freeBlocks[block >>> 6] |= 1L << block;
+                ++freeBlockCount;
+            } else {
+                songBlocks[tableValue][block >>> 6] |= 1L << block;
+                ++songBlockCounts[tableValue];
+            }
+        }
+    }
+
+    @Override
+    public BlockAllocationIndex clone() {
+        try {
+            BlockAllocationIndex copy = (BlockAllocationIndex) super.clone();
+            copy.freeBlocks = freeBlocks.clone();
+            copy.songBlocks = new long[SONG_COUNT][];
+            for (int song = 0; song < SONG_COUNT; ++song) {
+                copy.songBlocks[song] = songBlocks[song].clone();
+            }
+            copy.songBlockCounts = songBlockCounts.clone();
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    int blockCount() {
+        return blockCount;
+    }
+
+    int freeBlockCount() {
+        return freeBlockCount;
+    }
+
+    int blocksUsed(int song) {
+        return song < 0 || song >= SONG_COUNT ? 0 : songBlockCounts[song];
+    }
+
+    boolean isFree(int block) {
+        return (freeBlocks[block >>> 6] & (1L << block)) != 0;
+    }
+
+    /**
+     * Returns the lowest free block, or -1 if there is none.
+     */
+    int firstFreeBlock() {
+        return nextSetBit(freeBlocks, 0);
+    }
+
+    /**
+     * Returns the runs of consecutive free blocks in ascending order, as pairs of
+     * first block and length.
+     */
+    int[] freeExtents() {
+        int[] extents = new int[16];
+        int count = 0;
+        for (int start = nextSetBit(freeBlocks, 0); start != -1; ) {
+            int end = nextClearBit(freeBlocks, start);
+            if (count == extents.length) {
+                extents = Arrays.copyOf(extents, count * 2);
+            }
+            extents[count++] = start;
+            extents[count++] = end - start;
+            start = nextSetBit(freeBlocks, end);
+        }
+        return Arrays.copyOf(extents, count);
+    }
+
+    /**
+     * Returns the lowest free slot, or -1 if all slots are in use.
+     */
+    int firstFreeSong() {
+        for (int song = 0; song < SONG_COUNT; ++song) {
+            if (songBlockCounts[song] == 0) {
+                return song;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the lowest block owned by song, or -1 if the song has no blocks.
+     */
+    int firstBlock(int song) {
+        return nextSetBit(songBlocks[song], 0);
+    }
+
+    /**
+     * Returns the lowest block owned by song that is >= fromBlock, or -1.
+     * Together with firstBlock(), this walks a song's blocks in FAT order.
+     */
+    int nextBlock(int song, int fromBlock) {
+        return nextSetBit(songBlocks[song], fromBlock);
+    }
+
+    /**
+     * Returns the blocks owned by song in FAT order.
+     */
+    int[] blocks(int song) {
+        int[] blocks = new int[songBlockCounts[song]];
+        int i = 0;
+        for (int block = firstBlock(song); block != -1; block = nextBlock(song, block + 1)) {
+            blocks[i++] = block;
+        }
+        return blocks;
+    }
+
+    void allocate(int block, int song) {
+        assert isFree(block);
+        freeBlocks[block >>> 6] &= ~(1L << block);
+        --freeBlockCount;
+        songBlocks[song][block >>> 6] |= 1L << block;
+        ++songBlockCounts[song];
+    }
+
+    /**
+     * Marks all blocks of song as free.
+     */
+    void free(int song) {
+        long[] blocks = songBlocks[song];
+        for (int word = 0; word < blocks.length; ++word) {
+            freeBlocks[word] |= blocks[word];
+        }
+        freeBlockCount += songBlockCounts[song];
+        Arrays.fill(blocks, 0);
+        songBlockCounts[song] = 0;
+    }
+
+    /**
+     * Returns the lowest clear bit >= fromBit, or blockCount if there is none.
+     */
+    private int nextClearBit(long[] bits, int fromBit) {
+        if (fromBit >= blockCount) {
+            return blockCount;
+        }
+        int word = fromBit >>> 6;
+        long masked = ~bits[word] & (-1L << fromBit);
+        while (true) {
+            if (masked != 0) {
+                int bit = (word << 6) + Long.numberOfTrailingZeros(masked);
+                return Math.min(bit, blockCount);
+            }
+            if (++word == bits.length) {
+                return blockCount;
+            }
+            masked = ~bits[word];
+        }
+    }
+
+    private int nextSetBit(long[] bits, int fromBit) {
+        if (fromBit >= blockCount) {
+            return -1;
+        }
+        int word = fromBit >>> 6;
+        long masked = bits[word] & (-1L << fromBit);
+        while (true) {
+            if (masked != 0) {
+                int bit = (word << 6) + Long.numberOfTrailingZeros(masked);
+                return bit < blockCount ? bit : -1;
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            masked = bits[word];
+        }
+    }
+}
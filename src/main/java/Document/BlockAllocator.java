@@ -0,0 +1,85 @@
+package Document;
+
+import java.util.Arrays;
+
+/**
+ * Strategy for picking the free .sav blocks a new song is stored in.
+ * <p>
+ * Allocators work on the free extents of the FAT, i.e. the runs of consecutive free
+ * blocks, rather than on single blocks. Songs are always chained through their blocks
+ * in ascending order, since LSDj starts decoding at the lowest block of a song, so
+ * allocators only decide which blocks to use.
+ */
+public interface BlockAllocator {
+    /**
+     * Picks blockCount free blocks.
+     *
+     * @param extents free runs in ascending block order, as pairs of first block and length
+     * @return the picked blocks in ascending order, or null if they do not fit
+     */
+    int[] allocate(int[] extents, int blockCount);
+
+    /**
+     * Uses the lowest free blocks.
+     */
+    BlockAllocator FIRST_FIT = (extents, blockCount) -> {
+        int[] blocks = new int[blockCount];
+        int i = 0;
+        for (int extent = 0; extent < extents.length && i < blockCount; extent += 2) {
+            for (int block = extents[extent]; block < extents[extent] + extents[extent + 1] && i < blockCount; ++block) {
+                blocks[i++] = block;
+            }
+        }
+        return i == blockCount ? blocks : null;
+    };
+
+    /**
+     * Fills the runs from the largest down, so the song is split into as few parts as possible.
+     */
+    BlockAllocator LARGEST_FREE_RUN = (extents, blockCount) -> {
+        int runCount = extents.length / 2;
+        // Sort run indices by descending length, packing length and index into longs.
+        long[] runs = new long[runCount];
+        for (int run = 0; run < runCount; ++run) {
+            runs[run] = ((long) -extents[2 * run + 1] << 32) | run;
+        }
+        Arrays.sort(runs);
+        int[] blocks = new int[blockCount];
+        int i = 0;
+        for (int r = 0; r < runCount && i < blockCount; ++r) {
+            int run = (int) runs[r];
+            int first = extents[2 * run];
+            int length = Math.min(extents[2 * run + 1], blockCount - i);
+            for (int block = first; block < first + length; ++block) {
+                blocks[i++] = block;
+            }
+        }
+        if (i < blockCount) {
+            return null;
+        }
+        Arrays.sort(blocks);
+        return blocks;
+    };
+
+    /**
+     * Uses the start of the smallest run the whole song fits in, leaving larger runs for
+     * larger songs. Falls back to LARGEST_FREE_RUN if no run is large enough.
+     */
+    BlockAllocator BEST_FIT_CONTIGUOUS = (extents, blockCount) -> {
+        int best = -1;
+        for (int extent = 0; extent < extents.length; extent += 2) {
+            int length = extents[extent + 1];
+            if (length >= blockCount && (best == -1 || length < extents[best + 1])) {
+                best = extent;
+            }
+        }
+        if (best == -1) {
+            return LARGEST_FREE_RUN.allocate(extents, blockCount);
+        }
+        int[] blocks = new int[blockCount];
+        for (int i = 0; i < blockCount; ++i) {
+            blocks[i] = extents[best] + i;
+        }
+        return blocks;
+    };
+}
@@ -0,0 +1,405 @@
+package Document;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Read-only structured view of a decoded 0x8000 byte song.
+ * <p>
+ * The phrase, chain, instrument, table, groove and wave views are flyweights holding
+ * only a reference to the song buffer and an index. Nothing is copied or parsed up
+ * front; each accessor reads its byte from the buffer when called, so views are cheap
+ * enough to create in loops over whole song libraries.
+ */
+public class DecodedSong {
+    public static final int PHRASE_COUNT = 0xff;
+    public static final int CHAIN_COUNT = 0x80;
+    public static final int INSTRUMENT_COUNT = 0x40;
+    public static final int TABLE_COUNT = 0x20;
+    public static final int GROOVE_COUNT = 0x20;
+    public static final int WAVE_COUNT = 0x100;
+    public static final int SONG_ROW_COUNT = 0x100;
+    public static final int STEP_COUNT = 0x10;
+    public static final int CHANNEL_COUNT = 4;
+
+    /** Value of empty song rows, chain steps and phrase instruments. */
+    public static final int EMPTY = 0xff;
+
+    static final int PHRASE_NOTES = 0x0000;
+    static final int GROOVES = 0x1090;
+    static final int SONG_CHAINS = 0x1290;
+    static final int TABLE_VOLUMES = 0x1690;
+    static final int INSTRUMENT_NAMES = 0x1e7a;
+    static final int TABLE_ALLOC = 0x2020;
+    static final int INSTRUMENT_ALLOC = 0x2040;
+    static final int CHAIN_PHRASES = 0x2080;
+    static final int CHAIN_TRANSPOSES = 0x2880;
+    static final int INSTRUMENTS = 0x3080;
+    static final int TABLE_TRANSPOSES = 0x3480;
+    static final int TABLE_COMMAND1 = 0x3680;
+    static final int TABLE_COMMAND1_VALUES = 0x3880;
+    static final int TABLE_COMMAND2 = 0x3a80;
+    static final int TABLE_COMMAND2_VALUES = 0x3c80;
+    static final int PHRASE_ALLOC = 0x3e82;
+    static final int CHAIN_ALLOC = 0x3ea2;
+    static final int PHRASE_COMMANDS = 0x4000;
+    static final int PHRASE_COMMAND_VALUES = 0x4ff0;
+    static final int WAVES = 0x6000;
+    static final int PHRASE_INSTRUMENTS = 0x7000;
+
+    static final int INSTRUMENT_SIZE = 0x10;
+    static final int INSTRUMENT_NAME_LENGTH = 5;
+    static final int WAVE_SIZE = 0x10;
+
+    private final ByteBuffer song;
+
+    /**
+     * @param song buffer with the decoded song between position and position + 0x8000.
+     *             Not copied, so later changes to the buffer show through the views.
+     */
+    public DecodedSong(ByteBuffer song) {
+        if (song.remaining() < SongDecoder.SONG_SIZE) {
+            throw new IllegalArgumentException("Song buffer too small");
+        }
+        ByteBuffer slice = song.slice();
+        slice.limit(SongDecoder.SONG_SIZE);
+        this.song = slice;
+    }
+
+    public DecodedSong(byte[] song, int offset) {
+        this(ByteBuffer.wrap(song, offset, SongDecoder.SONG_SIZE));
+    }
+
+    /**
+     * Decodes a song of savFile into a new buffer.
+     *
+     * @return the song, or null if it could not be decoded
+     */
+    public static DecodedSong decode(LSDSavFile savFile, int songId) {
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        if (savFile.decodeSong(songId, new SongDecoder(), song, 0) != SongDecoder.OK) {
+            return null;
+        }
+        return new DecodedSong(song, 0);
+    }
+
+    private int get(int offset) {
+        return song.get(offset) & 0xff;
+    }
+
+    private static boolean bitSet(ByteBuffer song, int offset, int index) {
+        return (song.get(offset + index / 8) & (1 << (index % 8))) != 0;
+    }
+
+    /**
+     * Returns the chain played by a channel at a song row, or EMPTY.
+     */
+    public int songChain(int row, int channel) {
+        return get(SONG_CHAINS + row * CHANNEL_COUNT + channel);
+    }
+
+    public boolean isPhraseAllocated(int phrase) {
+        return bitSet(song, PHRASE_ALLOC, phrase);
+    }
+
+    public boolean isChainAllocated(int chain) {
+        return bitSet(song, CHAIN_ALLOC, chain);
+    }
+
+    public boolean isInstrumentAllocated(int instrument) {
+        return get(INSTRUMENT_ALLOC + instrument) != 0;
+    }
+
+    public boolean isTableAllocated(int table) {
+        return get(TABLE_ALLOC + table) != 0;
+    }
+
+    public Phrase phrase(int phrase) {
+        return new Phrase(song, phrase);
+    }
+
+    public Chain chain(int chain) {
+        return new Chain(song, chain);
+    }
+
+    public Instrument instrument(int instrument) {
+        return new Instrument(song, instrument);
+    }
+
+    public Table table(int table) {
+        return new Table(song, table);
+    }
+
+    public Groove groove(int groove) {
+        return new Groove(song, groove);
+    }
+
+    public Wave wave(int wave) {
+        return new Wave(song, wave);
+    }
+
+    /**
+     * Returns a mask with bit n set if kit n is used by a kit instrument.
+     */
+    public long usedKitMask() {
+        long mask = 0;
+        for (int i = 0; i < INSTRUMENT_COUNT; ++i) {
+            Instrument instrument = instrument(i);
+            if (instrument.type() == Instrument.KIT) {
+                mask |= 1L << instrument.kit1();
+                mask |= 1L << instrument.kit2();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns, per instrument, the number of phrase steps in allocated phrases that use it.
+     */
+    public int[] instrumentUseCounts() {
+        int[] counts = new int[INSTRUMENT_COUNT];
+        for (int phrase = 0; phrase < PHRASE_COUNT; ++phrase) {
+            if (!isPhraseAllocated(phrase)) {
+                continue;
+            }
+            for (int step = 0; step < STEP_COUNT; ++step) {
+                int instrument = get(PHRASE_INSTRUMENTS + phrase * STEP_COUNT + step);
+                if (instrument < INSTRUMENT_COUNT) {
+                    ++counts[instrument];
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the chains that are played from some song row.
+     */
+    public BitSet usedChains() {
+        BitSet chains = new BitSet(CHAIN_COUNT);
+        for (int i = 0; i < SONG_ROW_COUNT * CHANNEL_COUNT; ++i) {
+            int chain = get(SONG_CHAINS + i);
+            if (chain < CHAIN_COUNT) {
+                chains.set(chain);
+            }
+        }
+        return chains;
+    }
+
+    /**
+     * Returns the chains that are allocated but never played from the song.
+     */
+    public BitSet unusedChains() {
+        BitSet chains = new BitSet(CHAIN_COUNT);
+        for (int chain = 0; chain < CHAIN_COUNT; ++chain) {
+            if (isChainAllocated(chain)) {
+                chains.set(chain);
+            }
+        }
+        chains.andNot(usedChains());
+        return chains;
+    }
+
+    public static class Phrase {
+        private final ByteBuffer song;
+        private final int index;
+
+        Phrase(ByteBuffer song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns the note at a step, or 0 for no note.
+         */
+        public int note(int step) {
+            return song.get(PHRASE_NOTES + index * STEP_COUNT + step) & 0xff;
+        }
+
+        /**
+         * Returns the instrument at a step, or EMPTY.
+         */
+        public int instrument(int step) {
+            return song.get(PHRASE_INSTRUMENTS + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int command(int step) {
+            return song.get(PHRASE_COMMANDS + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int commandValue(int step) {
+            return song.get(PHRASE_COMMAND_VALUES + index * STEP_COUNT + step) & 0xff;
+        }
+    }
+
+    public static class Chain {
+        private final ByteBuffer song;
+        private final int index;
+
+        Chain(ByteBuffer song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns the phrase at a step, or EMPTY.
+         */
+        public int phrase(int step) {
+            return song.get(CHAIN_PHRASES + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int transpose(int step) {
+            return song.get(CHAIN_TRANSPOSES + index * STEP_COUNT + step) & 0xff;
+        }
+    }
+
+    public static class Instrument {
+        public static final int PULSE = 0;
+        public static final int WAVE = 1;
+        public static final int KIT = 2;
+        public static final int NOISE = 3;
+
+        private final ByteBuffer song;
+        private final int index;
+
+        Instrument(ByteBuffer song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns PULSE, WAVE, KIT or NOISE.
+         */
+        public int type() {
+            return parameter(0);
+        }
+
+        /**
+         * Returns the raw value of instrument byte 0..15.
+         */
+        public int parameter(int parameter) {
+            return song.get(INSTRUMENTS + index * INSTRUMENT_SIZE + parameter) & 0xff;
+        }
+
+        /**
+         * Returns the first kit of a kit instrument.
+         */
+        public int kit1() {
+            return parameter(2) & 0x3f;
+        }
+
+        /**
+         * Returns the second kit of a kit instrument.
+         */
+        public int kit2() {
+            return parameter(9) & 0x3f;
+        }
+
+        public String name() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < INSTRUMENT_NAME_LENGTH; ++i) {
+                int ch = song.get(INSTRUMENT_NAMES + index * INSTRUMENT_NAME_LENGTH + i);
+                if (ch == 0) {
+                    break;
+                }
+                sb.append((char) LSDSavFile.convertLsdCharToAscii(ch));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static class Table {
+        private final ByteBuffer song;
+        private final int index;
+
+        Table(ByteBuffer song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public int volume(int step) {
+            return song.get(TABLE_VOLUMES + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int transpose(int step) {
+            return song.get(TABLE_TRANSPOSES + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int command1(int step) {
+            return song.get(TABLE_COMMAND1 + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int command1Value(int step) {
+            return song.get(TABLE_COMMAND1_VALUES + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int command2(int step) {
+            return song.get(TABLE_COMMAND2 + index * STEP_COUNT + step) & 0xff;
+        }
+
+        public int command2Value(int step) {
+            return song.get(TABLE_COMMAND2_VALUES + index * STEP_COUNT + step) & 0xff;
+        }
+    }
+
+    public static class Groove {
+        private final ByteBuffer song;
+        private final int index;
+
+        Groove(ByteBuffer song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns the tick count of a step, 0 where the groove has ended.
+         */
+        public int ticks(int step) {
+            return song.get(GROOVES + index * STEP_COUNT + step) & 0xff;
+        }
+    }
+
+    public static class Wave {
+        public static final int SAMPLE_COUNT = 0x20;
+
+        private final ByteBuffer song;
+        private final int index;
+
+        Wave(ByteBuffer song, int index) {
+            this.song = song;
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns 4-bit sample 0..31.
+         */
+        public int sample(int sample) {
+            int value = song.get(WAVES + index * WAVE_SIZE + sample / 2) & 0xff;
+            return sample % 2 == 0 ? value >> 4 : value & 0xf;
+        }
+    }
+}
@@ -3,22 +3,61 @@ package Document;
 import utils.EditorPreferences;
 import utils.RomUtilities;
 
+import javax.swing.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
 
+/**
+ * The ROM and .sav being edited.
+ * <p>
+ * Both are held as PagedImages, with ROM pages of one bank and .sav pages of one 0x200
+ * byte block. Editors work on plain arrays, so romImage() and savFile() return full
+ * copies, and handing them back compares every page. Only the pages that changed are
+ * replaced, so the undo journal and change events cost O(changed pages).
+ * <p>
+ * Changes handed back are recorded in an undo journal as deltas of the changed pages.
+ * Use beginTransaction()/endTransaction() to undo several changes as one.
+ */
 public class Document {
+    static final int SAV_PAGE_SIZE = 0x200;
+    static final int SAV_PAGE_COUNT = 0x20000 / SAV_PAGE_SIZE;
+    static final long DEFAULT_UNDO_MEMORY_LIMIT = 16 << 20;
+
+    // Banks holding the data behind the DocumentChange tags, see RomUtilities.
+    private static final int PALETTE_BANK = 1;
+    private static final int NAME_BANK = 27;
+    private static final int FONT_BANK = 30;
+
     private boolean romDirty;
-    private byte[] romImage;
+    private PagedImage romImage;
     private File romFile;
 
     private boolean savDirty;
-    private LSDSavFile savFile = new LSDSavFile();
+    private PagedImage savImage = pagedSavImage(new LSDSavFile());
+    private SavFileWriter savFileWriter;
+
+    private final EditJournal journal = new EditJournal(DEFAULT_UNDO_MEMORY_LIMIT);
 
     private final List<IDocumentListener> documentListeners = new LinkedList<>();
+    private final DocumentChangeDispatcher changeDispatcher;
+
+    public Document() {
+        this(SwingUtilities::invokeLater);
+    }
+
+    /**
+     * Creates a document that delivers change events through changeExecutor
+     * instead of the Swing event queue.
+     */
+    Document(Executor changeExecutor) {
+        changeDispatcher = new DocumentChangeDispatcher(changeExecutor);
+    }
 
     public void subscribe(IDocumentListener documentListener) {
         documentListeners.add(documentListener);
@@ -44,29 +83,77 @@ public class Document {
         publishDocumentDirty();
     }
 
+    private static PagedImage pagedSavImage(LSDSavFile savFile) {
+        return new PagedImage(savFile.workRam, SAV_PAGE_SIZE);
+    }
+
+    public boolean hasRomImage() {
+        return romImage != null;
+    }
+
     public byte[] romImage() {
-        return romImage == null ? null : romImage.clone();
+        return romImage == null ? null : romImage.toByteArray();
+    }
+
+    /**
+     * Copies length bytes of the ROM image from offset into dst. Unlike romImage(),
+     * does not copy the whole image.
+     */
+    public void readRom(int offset, byte[] dst, int dstOffset, int length) {
+        romImage.read(offset, dst, dstOffset, length);
+    }
+
+    /**
+     * Returns true if romImage has the same contents as the document ROM image.
+     */
+    public boolean romImageEquals(byte[] romImage) {
+        return this.romImage == null ? romImage == null : this.romImage.contentEquals(romImage);
     }
 
     public void setRomImage(byte[] romImage) {
-        if (Arrays.equals(romImage, this.romImage)) {
+        if (romImage == null || this.romImage == null) {
+            if (romImage == null && this.romImage == null) {
+                return;
+            }
+            this.romImage = romImage == null ? null : new PagedImage(romImage, RomUtilities.BANK_SIZE);
+            romReplaced();
+            setRomDirty(true);
             return;
         }
-        this.romImage = romImage;
-        setRomDirty(true);
+        if (romImage.length != this.romImage.length()) {
+            this.romImage = new PagedImage(romImage, RomUtilities.BANK_SIZE);
+            romReplaced();
+            setRomDirty(true);
+            return;
+        }
+        byte[][] before = this.romImage.pageReferences();
+        if (record(EditJournal.ROM, before, this.romImage, this.romImage.assign(romImage))) {
+            setRomDirty(true);
+        }
+    }
+
+    /**
+     * Returns the ROM banks written since the ROM was loaded or last cleared.
+     */
+    public BitSet dirtyRomBanks() {
+        return romImage == null ? new BitSet() : romImage.dirtyPages();
     }
 
     public void loadRomImage(String romPath) throws IOException {
         romFile = new File(romPath);
-        romImage = new byte[RomUtilities.BANK_SIZE * RomUtilities.BANK_COUNT];
-        setRomDirty(false);
+        byte[] romImage = new byte[RomUtilities.BANK_SIZE * RomUtilities.BANK_COUNT];
         try {
             RandomAccessFile f = new RandomAccessFile(romFile, "r");
             f.readFully(romImage);
             f.close();
+            this.romImage = new PagedImage(romImage, RomUtilities.BANK_SIZE);
+            romReplaced();
+            setRomDirty(false);
             EditorPreferences.setLastPath("gb", romPath);
         } catch (IOException ioe) {
-            romImage = null;
+            this.romImage = null;
+            romReplaced();
+            setRomDirty(false);
             throw ioe;
         }
     }
@@ -74,37 +161,220 @@ public class Document {
     public void loadSavFile(String savPath) throws IOException {
         setSavDirty(false);
         try {
-            savFile = new LSDSavFile();
-            savFile.loadFromSav(savPath);
+            LSDSavFile savFile = new LSDSavFile();
+            savFileWriter = new SavFileWriter(new File(savPath));
+            savFileWriter.load(savFile);
+            savImage = pagedSavImage(savFile);
+            savReplaced();
             EditorPreferences.setLastPath("sav", savPath);
         } catch (IOException e) {
-            savFile = null;
+            savImage = null;
+            savFileWriter = null;
+            savReplaced();
             throw e;
         }
     }
 
-    public LSDSavFile savFile() {
-        if (savFile == null) {
-            return null;
+    /**
+     * Writes the .sav to savPath and clears the .sav dirty flag. When saving to the file
+     * the .sav was loaded from or last saved to, only blocks that changed are written.
+     */
+    public void saveSavFile(String savPath) throws IOException {
+        File file = new File(savPath);
+        if (savFileWriter == null || !savFileWriter.file().equals(file)) {
+            savFileWriter = new SavFileWriter(file);
         }
-        try {
-            return savFile.clone();
-        } catch (CloneNotSupportedException e) {
+        savFileWriter.save(savFile());
+        clearSavDirty();
+    }
+
+    public boolean hasSavFile() {
+        return savImage != null;
+    }
+
+    public LSDSavFile savFile() {
+        if (savImage == null) {
             return null;
         }
+        LSDSavFile savFile = new LSDSavFile();
+        savImage.read(0, savFile.workRam, 0, savFile.workRam.length);
+        return savFile;
     }
 
     public void setSavFile(LSDSavFile savFile) {
         if (savFile == null) {
-            this.savFile = null;
+            this.savImage = null;
+            savReplaced();
             setSavDirty(false);
             return;
         }
-        if (this.savFile != null && savFile.equals(this.savFile)) {
+        if (this.savImage == null) {
+            this.savImage = pagedSavImage(savFile);
+            savReplaced();
+            setSavDirty(true);
             return;
         }
-        this.savFile = savFile;
-        setSavDirty(true);
+        byte[][] before = this.savImage.pageReferences();
+        if (record(EditJournal.SAV, before, this.savImage, this.savImage.assign(savFile.workRam))) {
+            setSavDirty(true);
+        }
+    }
+
+    /**
+     * Records changed pages in the undo journal and posts them to change listeners.
+     *
+     * @return true if any page changed
+     */
+    private boolean record(int image, byte[][] before, PagedImage after, BitSet changedPages) {
+        if (changedPages.isEmpty()) {
+            return false;
+        }
+        journal.begin();
+        for (int page = changedPages.nextSetBit(0); page >= 0; page = changedPages.nextSetBit(page + 1)) {
+            journal.record(image, page, before[page], after.page(page));
+        }
+        journal.end();
+        if (image == EditJournal.ROM) {
+            postRomChange(changedPages, before);
+        } else {
+            postSavChange(changedPages);
+        }
+        return true;
+    }
+
+    private void romReplaced() {
+        journal.clear();
+        DocumentChange change = new DocumentChange();
+        BitSet banks = new BitSet();
+        banks.set(0, romImage == null ? RomUtilities.BANK_COUNT : romImage.pageCount());
+        change.addRomBanks(banks);
+        change.addTag(DocumentChange.Tag.KIT);
+        change.addTag(DocumentChange.Tag.FONT);
+        change.addTag(DocumentChange.Tag.PALETTE);
+        changeDispatcher.post(change);
+    }
+
+    private void savReplaced() {
+        journal.clear();
+        BitSet blocks = new BitSet();
+        blocks.set(0, SAV_PAGE_COUNT);
+        postSavChange(blocks);
+    }
+
+    /**
+     * @param before the bank contents before the change, used to tell if a kit was removed
+     */
+    private void postRomChange(BitSet banks, byte[][] before) {
+        DocumentChange change = new DocumentChange();
+        change.addRomBanks(banks);
+        for (int bank = banks.nextSetBit(0); bank >= 0; bank = banks.nextSetBit(bank + 1)) {
+            if (bank == PALETTE_BANK || bank == NAME_BANK) {
+                change.addTag(DocumentChange.Tag.PALETTE);
+            }
+            if (bank == FONT_BANK || bank == NAME_BANK) {
+                change.addTag(DocumentChange.Tag.FONT);
+            }
+            if (isKitBank(romImage.page(bank)) || isKitBank(before[bank])) {
+                change.addTag(DocumentChange.Tag.KIT);
+            }
+        }
+        changeDispatcher.post(change);
+    }
+
+    private void postSavChange(BitSet blocks) {
+        DocumentChange change = new DocumentChange();
+        change.addSavBlocks(blocks);
+        change.addTag(DocumentChange.Tag.SONG);
+        changeDispatcher.post(change);
+    }
+
+    private static boolean isKitBank(byte[] bank) {
+        return bank[0] == 0x60 && bank[1] == 0x40;
+    }
+
+    /**
+     * Subscribes to changes of the document contents. Changes are delivered on the Swing
+     * event thread, with all changes made since the previous delivery merged into one.
+     */
+    public void subscribeChanges(DocumentChangeListener listener) {
+        subscribeChanges(listener, change -> true);
+    }
+
+    /**
+     * Subscribes to changes accepted by filter, e.g. DocumentChange.tagged(DocumentChange.Tag.KIT).
+     */
+    public void subscribeChanges(DocumentChangeListener listener, Predicate<DocumentChange> filter) {
+        changeDispatcher.subscribe(listener, filter);
+    }
+
+    public void unsubscribeChanges(DocumentChangeListener listener) {
+        changeDispatcher.unsubscribe(listener);
+    }
+
+    /**
+     * Groups the changes handed to the document until the matching endTransaction()
+     * into one undo step. Transactions nest.
+     */
+    public void beginTransaction() {
+        journal.begin();
+    }
+
+    public void endTransaction() {
+        journal.end();
+        publishDocumentDirty();
+    }
+
+    public boolean canUndo() {
+        return journal.canUndo();
+    }
+
+    public boolean canRedo() {
+        return journal.canRedo();
+    }
+
+    public boolean undo() {
+        return apply(journal.undo());
+    }
+
+    public boolean redo() {
+        return apply(journal.redo());
+    }
+
+    /**
+     * Limits the memory used for undo history. The oldest steps are dropped first.
+     */
+    public void setUndoMemoryLimit(long bytes) {
+        journal.setMemoryLimit(bytes);
+    }
+
+    private boolean apply(EditJournal.Entry entry) {
+        if (entry == null) {
+            return false;
+        }
+        byte[][] romBefore = romImage == null ? null : romImage.pageReferences();
+        BitSet romBanks = new BitSet();
+        BitSet savBlocks = new BitSet();
+        for (EditJournal.PageDelta pageDelta : entry.deltas) {
+            PagedImage image = pageDelta.image == EditJournal.ROM ? romImage : savImage;
+            image.replacePage(pageDelta.page, EditJournal.apply(image.page(pageDelta.page), pageDelta.delta));
+            (pageDelta.image == EditJournal.ROM ? romBanks : savBlocks).set(pageDelta.page);
+        }
+        if (!romBanks.isEmpty()) {
+            postRomChange(romBanks, romBefore);
+            setRomDirty(true);
+        }
+        if (!savBlocks.isEmpty()) {
+            postSavChange(savBlocks);
+            setSavDirty(true);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the .sav blocks written since the .sav was loaded or last cleared.
+     */
+    public BitSet dirtySavBlocks() {
+        return savImage == null ? new BitSet() : savImage.dirtyPages();
     }
 
     public boolean isSavDirty() {
@@ -124,10 +394,16 @@ public class Document {
     }
 
     public void clearSavDirty() {
+        if (savImage != null) {
+            savImage.clearDirty();
+        }
         setSavDirty(false);
     }
 
     public void clearRomDirty() {
+        if (romImage != null) {
+            romImage.clearDirty();
+        }
         setRomDirty(false);
     }
 }
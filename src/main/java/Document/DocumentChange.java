@@ -0,0 +1,117 @@
+package Document;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Describes what parts of a Document changed: ROM banks, .sav blocks, and tags for
+ * the kind of data that was touched.
+ * <p>
+ * Changes posted within one event dispatch are merged, so one DocumentChange can
+ * cover several edits.
+ */
+public class DocumentChange {
+    public enum Tag {
+        KIT,
+        FONT,
+        PALETTE,
+        SONG
+    }
+
+    private final BitSet romBanks = new BitSet();
+    private final BitSet savBlocks = new BitSet();
+    private final EnumSet<Tag> tags = EnumSet.noneOf(Tag.class);
+
+    DocumentChange() {
+    }
+
+    public BitSet romBanks() {
+        return (BitSet) romBanks.clone();
+    }
+
+    /**
+     * Returns the changed .sav blocks, counted in 0x200 byte blocks from the start of the .sav.
+     */
+    public BitSet savBlocks() {
+        return (BitSet) savBlocks.clone();
+    }
+
+    public Set<Tag> tags() {
+        return Collections.unmodifiableSet(tags);
+    }
+
+    public boolean has(Tag tag) {
+        return tags.contains(tag);
+    }
+
+    public boolean romBankChanged(int bank) {
+        return romBanks.get(bank);
+    }
+
+    /**
+     * Returns true if any ROM bank in [fromBank, toBank) changed.
+     */
+    public boolean romBanksChanged(int fromBank, int toBank) {
+        int bank = romBanks.nextSetBit(fromBank);
+        return bank != -1 && bank < toBank;
+    }
+
+    public boolean savBlockChanged(int block) {
+        return savBlocks.get(block);
+    }
+
+    /**
+     * Returns true if any .sav block in [fromBlock, toBlock) changed.
+     */
+    public boolean savBlocksChanged(int fromBlock, int toBlock) {
+        int block = savBlocks.nextSetBit(fromBlock);
+        return block != -1 && block < toBlock;
+    }
+
+    public boolean isEmpty() {
+        return romBanks.isEmpty() && savBlocks.isEmpty() && tags.isEmpty();
+    }
+
+    void addRomBanks(BitSet banks) {
+        romBanks.or(banks);
+    }
+
+    void addSavBlocks(BitSet blocks) {
+        savBlocks.or(blocks);
+    }
+
+    void addTag(Tag tag) {
+        tags.add(tag);
+    }
+
+    void merge(DocumentChange other) {
+        romBanks.or(other.romBanks);
+        savBlocks.or(other.savBlocks);
+        tags.addAll(other.tags);
+    }
+
+    /**
+     * Filter accepting changes that have any of the given tags.
+     */
+    public static Predicate<DocumentChange> tagged(Tag first, Tag... rest) {
+        EnumSet<Tag> wanted = EnumSet.of(first, rest);
+        return change -> !Collections.disjoint(change.tags, wanted);
+    }
+
+    /**
+     * Filter accepting changes to any ROM bank in [fromBank, toBank).
+     */
+    public static Predicate<DocumentChange> romBankRange(int fromBank, int toBank) {
+        return change -> change.romBanksChanged(fromBank, toBank);
+    }
+
+    /**
+     * Filter accepting changes to any .sav block in [fromBlock, toBlock).
+     */
+    public static Predicate<DocumentChange> savBlockRange(int fromBlock, int toBlock) {
+        return change -> change.savBlocksChanged(fromBlock, toBlock);
+    }
+}
@@ -0,0 +1,69 @@
+package Document;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * Coalesces posted DocumentChanges and delivers them to filtered subscribers.
+ * <p>
+ * The first change posted after a dispatch schedules one dispatch on the executor,
+ * normally the Swing event queue. Changes posted before that dispatch runs are merged
+ * into it, so a batch of edits reaches each subscriber as a single change.
+ */
+class DocumentChangeDispatcher {
+    private static class Subscription {
+        final DocumentChangeListener listener;
+        final Predicate<DocumentChange> filter;
+
+        Subscription(DocumentChangeListener listener, Predicate<DocumentChange> filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+    }
+
+    private final Executor executor;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private DocumentChange pending;
+
+    DocumentChangeDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    void subscribe(DocumentChangeListener listener, Predicate<DocumentChange> filter) {
+        subscriptions.add(new Subscription(listener, filter));
+    }
+
+    void unsubscribe(DocumentChangeListener listener) {
+        subscriptions.removeIf(subscription -> subscription.listener == listener);
+    }
+
+    void post(DocumentChange change) {
+        if (change.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (pending != null) {
+                pending.merge(change);
+                return;
+            }
+            pending = new DocumentChange();
+            pending.merge(change);
+        }
+        executor.execute(this::dispatch);
+    }
+
+    private void dispatch() {
+        DocumentChange change;
+        synchronized (this) {
+            change = pending;
+            pending = null;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter.test(change)) {
+                subscription.listener.onDocumentChanged(change);
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package Document;
+
+public interface DocumentChangeListener {
+    void onDocumentChanged(DocumentChange change);
+}
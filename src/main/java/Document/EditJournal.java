@@ -0,0 +1,228 @@
+package Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Undo/redo history for Document.
+ * <p>
+ * Each entry holds, for every page an edit changed, the XOR of the page before and after
+ * the edit, with runs of unchanged bytes skipped. Since XOR is its own inverse, the same
+ * delta takes a page back for undo and forward again for redo. When the deltas take more
+ * memory than the limit, the oldest entries are dropped.
+ */
+class EditJournal {
+    static final int ROM = 0;
+    static final int SAV = 1;
+
+    // Rough per-delta bookkeeping cost, counted towards the memory limit.
+    private static final int DELTA_OVERHEAD = 32;
+
+    static class PageDelta {
+        final int image;
+        final int page;
+        final byte[] delta;
+
+        PageDelta(int image, int page, byte[] delta) {
+            this.image = image;
+            this.page = page;
+            this.delta = delta;
+        }
+    }
+
+    static class Entry {
+        final List<PageDelta> deltas = new ArrayList<>();
+        long size;
+    }
+
+    private final Deque<Entry> undoEntries = new ArrayDeque<>();
+    private final Deque<Entry> redoEntries = new ArrayDeque<>();
+    private long memoryLimit;
+    private long memoryUsed;
+
+    private Entry openEntry;
+    private int transactionDepth;
+
+    EditJournal(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+        trim();
+    }
+
+    long memoryUsed() {
+        return memoryUsed;
+    }
+
+    /**
+     * Starts grouping recorded changes into one entry. Transactions nest; the entry
+     * is committed when the outermost transaction ends.
+     */
+    void begin() {
+        if (transactionDepth++ == 0) {
+            openEntry = new Entry();
+        }
+    }
+
+    void end() {
+        assert transactionDepth > 0;
+        if (--transactionDepth > 0) {
+            return;
+        }
+        Entry entry = openEntry;
+        openEntry = null;
+        if (entry.deltas.isEmpty()) {
+            return;
+        }
+        clear(redoEntries);
+        undoEntries.push(entry);
+        memoryUsed += entry.size;
+        trim();
+    }
+
+    /**
+     * Records that a page changed from before to after.
+     */
+    void record(int image, int page, byte[] before, byte[] after) {
+        begin();
+        byte[] delta = encode(before, after);
+        openEntry.deltas.add(new PageDelta(image, page, delta));
+        openEntry.size += delta.length + DELTA_OVERHEAD;
+        end();
+    }
+
+    boolean canUndo() {
+        return !undoEntries.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    /**
+     * Returns the entry to apply for undo, or null.
+     */
+    Entry undo() {
+        Entry entry = undoEntries.poll();
+        if (entry != null) {
+            redoEntries.push(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry to apply for redo, or null.
+     */
+    Entry redo() {
+        Entry entry = redoEntries.poll();
+        if (entry != null) {
+            undoEntries.push(entry);
+        }
+        return entry;
+    }
+
+    void clear() {
+        clear(undoEntries);
+        clear(redoEntries);
+    }
+
+    private void clear(Deque<Entry> entries) {
+        for (Entry entry : entries) {
+            memoryUsed -= entry.size;
+        }
+        entries.clear();
+    }
+
+    private void trim() {
+        while (memoryUsed > memoryLimit && !redoEntries.isEmpty()) {
+            memoryUsed -= redoEntries.removeLast().size;
+        }
+        while (memoryUsed > memoryLimit && !undoEntries.isEmpty()) {
+            memoryUsed -= undoEntries.removeLast().size;
+        }
+    }
+
+    /**
+     * Encodes before ^ after as a sequence of (skip, length, length XOR bytes), with
+     * skip and length as 7-bit varints.
+     */
+    static byte[] encode(byte[] before, byte[] after) {
+        byte[] out = new byte[16];
+        int outPos = 0;
+        int pos = 0;
+        while (pos < before.length) {
+            int start = pos;
+            while (pos < before.length && before[pos] == after[pos]) {
+                ++pos;
+            }
+            if (pos == before.length) {
+                break;
+            }
+            int skip = pos - start;
+            int changedStart = pos;
+            // Extend the literal over short unchanged gaps, which are cheaper to store than a new header.
+            int unchanged = 0;
+            while (pos < before.length && unchanged < 3) {
+                unchanged = before[pos] == after[pos] ? unchanged + 1 : 0;
+                ++pos;
+            }
+            int length = pos - unchanged - changedStart;
+            pos = changedStart + length;
+
+            if (outPos + 10 + length > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, outPos + 10 + length));
+            }
+            outPos = writeVarint(out, outPos, skip);
+            outPos = writeVarint(out, outPos, length);
+            for (int i = 0; i < length; ++i) {
+                out[outPos++] = (byte) (before[changedStart + i] ^ after[changedStart + i]);
+            }
+        }
+        return Arrays.copyOf(out, outPos);
+    }
+
+    /**
+     * Returns a copy of page with delta applied.
+     */
+    static byte[] apply(byte[] page, byte[] delta) {
+        byte[] result = page.clone();
+        int pos = 0;
+        int deltaPos = 0;
+        while (deltaPos < delta.length) {
+            int skip = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = delta[deltaPos++];
+                skip |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            int length = 0;
+            shift = 0;
+            do {
+                b = delta[deltaPos++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            pos += skip;
+            for (int i = 0; i < length; ++i) {
+                result[pos++] ^= delta[deltaPos++];
+            }
+        }
+        return result;
+    }
+
+    private static int writeVarint(byte[] out, int outPos, int value) {
+        while (value >= 0x80) {
+            out[outPos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        out[outPos++] = (byte) value;
+        return outPos;
+    }
+}
@@ -0,0 +1,87 @@
+package Document;
+
+import utils.RomUtilities;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 64-bit fingerprints of all 0x4000 byte banks in a ROM image, for finding kits
+ * that are already in the ROM without comparing every bank byte by byte.
+ * <p>
+ * Fingerprints are computed on first lookup. Whoever writes to a bank of the ROM
+ * image must call bankChanged() for the index to stay valid; hits are always
+ * verified byte by byte, so a stale index can miss a kit but never return a wrong one.
+ */
+public class KitBankIndex {
+    private final byte[] romImage;
+    private long[] bankHashes;
+
+    public KitBankIndex(byte[] romImage) {
+        this.romImage = romImage;
+    }
+
+    public byte[] romImage() {
+        return romImage;
+    }
+
+    /**
+     * Returns the highest bank whose contents equal kit[offset..offset + 0x4000), or -1.
+     */
+    public int find(byte[] kit, int offset) {
+        long[] bankHashes = bankHashes();
+        long hash = hash(kit, offset);
+        for (int bank = bankHashes.length - 1; bank >= 0; --bank) {
+            if (bankHashes[bank] == hash && bankEquals(bank, kit, offset)) {
+                return bank;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Must be called after a bank of the ROM image has been written.
+     */
+    public void bankChanged(int bank) {
+        if (bankHashes != null) {
+            bankHashes[bank] = hash(romImage, bank * RomUtilities.BANK_SIZE);
+        }
+    }
+
+    private long[] bankHashes() {
+        if (bankHashes == null) {
+            bankHashes = new long[romImage.length / RomUtilities.BANK_SIZE];
+            for (int bank = 0; bank < bankHashes.length; ++bank) {
+                bankHashes[bank] = hash(romImage, bank * RomUtilities.BANK_SIZE);
+            }
+        }
+        return bankHashes;
+    }
+
+    private boolean bankEquals(int bank, byte[] kit, int offset) {
+        int bankOffset = bank * RomUtilities.BANK_SIZE;
+        for (int i = 0; i < RomUtilities.BANK_SIZE; ++i) {
+            if (kit[offset + i] != romImage[bankOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long hash(byte[] data, int offset) {
+        return hash(data, offset, RomUtilities.BANK_SIZE);
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of data[offset..offset + length). Length must be a multiple of 8.
+     */
+    public static long hash(byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        long hash = 0x9e3779b97f4a7c15L;
+        while (buffer.hasRemaining()) {
+            hash = (hash ^ buffer.getLong()) * 0x100000001b3L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,92 @@
+package Document;
+
+/**
+ * Finds the kit references of a compressed song in one decoding pass.
+ * <p>
+ * Collects the kits used by kit instruments as a mask, and the work RAM addresses of
+ * the kit bytes that are stored as plain literals, so that they can be rewritten in
+ * place. Kit bytes expanded from runs cannot be rewritten without re-encoding the song
+ * and are only reported in the mask. A scanner can be reused for any number of songs,
+ * but is not thread safe.
+ */
+class KitReferenceScanner implements SongDecoder.Visitor {
+    private static final int INSTRUMENTS = DecodedSong.INSTRUMENTS;
+    private static final int INSTRUMENTS_END = INSTRUMENTS
+            + DecodedSong.INSTRUMENT_COUNT * DecodedSong.INSTRUMENT_SIZE;
+
+    private final SongDecoder decoder = new SongDecoder();
+    // Two kit bytes per instrument.
+    private final int[] kitPtrs = new int[2 * DecodedSong.INSTRUMENT_COUNT];
+    private int kitPtrCount;
+    private long kitInstruments;
+    private long kitMask;
+
+    /**
+     * Scans the song starting at workRam[songStartPtr].
+     *
+     * @return SongDecoder status code
+     */
+    int scan(byte[] workRam, int songStartPtr) {
+        kitPtrCount = 0;
+        kitInstruments = 0;
+        kitMask = 0;
+        return decoder.visit(workRam, songStartPtr, this);
+    }
+
+    @Override
+    public void visit(int songPos, byte value, int srcPtr) {
+        if (songPos < INSTRUMENTS || songPos >= INSTRUMENTS_END) {
+            return;
+        }
+        int instr = (songPos - INSTRUMENTS) >> 4;
+        switch (songPos & 0xf) {
+            case 0:
+                if (value == DecodedSong.Instrument.KIT) {
+                    kitInstruments |= 1L << instr;
+                }
+                break;
+            case 2:
+            case 9:
+                if ((kitInstruments & (1L << instr)) != 0) {
+                    kitMask |= 1L << (value & 0x3f);
+                    if (srcPtr != -1) {
+                        kitPtrs[kitPtrCount++] = srcPtr;
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns a mask with bit n set if kit n is used by the last scanned song.
+     */
+    long kitMask() {
+        return kitMask;
+    }
+
+    /**
+     * Returns the number of kit bytes of the last scanned song that can be rewritten.
+     */
+    int kitPtrCount() {
+        return kitPtrCount;
+    }
+
+    /**
+     * Returns the work RAM address of a rewritable kit byte.
+     */
+    int kitPtr(int i) {
+        return kitPtrs[i];
+    }
+
+    /**
+     * Rewrites the kit bytes of the last scanned song, replacing kit n with kitMap[n]
+     * and keeping the upper two bits.
+     */
+    void remap(byte[] workRam, int[] kitMap) {
+        for (int i = 0; i < kitPtrCount; ++i) {
+            int ptr = kitPtrs[i];
+            int value = workRam[ptr];
+            workRam[ptr] = (byte) ((value & ~0x3f) | kitMap[value & 0x3f]);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package Document;
+
+import utils.RomUtilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Kits used by each song slot of a .sav, for finding the ROM kit banks that no song
+ * refers to anymore.
+ * <p>
+ * The slots are scanned in parallel when the index is built. After that, LSDSavFile
+ * rescans only the slots that songs are added to or cleared from. Kits used by a song
+ * that cannot be decoded are unknown, so no bank is reclaimable while there is one.
+ */
+public class KitUsageIndex {
+    private static final int KIT_COUNT = 0x40;
+
+    private final long[] songKits;
+    // Songs whose kits are not all known, since they could not be decoded.
+    private final boolean[] unreadable;
+
+    private KitUsageIndex(int songCount) {
+        songKits = new long[songCount];
+        unreadable = new boolean[songCount];
+    }
+
+    /**
+     * The allocation index of savFile must already be built, since the scan threads
+     * only read it.
+     */
+    static KitUsageIndex build(LSDSavFile savFile) {
+        KitUsageIndex index = new KitUsageIndex(savFile.songCount);
+        // Each slot writes only its own element; forEach returns after all writes are done.
+        IntStream.range(0, savFile.songCount).parallel()
+                .forEach(songId -> index.scan(savFile, songId));
+        return index;
+    }
+
+    /**
+     * Records the kits referenced by a song. Corrupted songs record the kits found
+     * before the corruption and are marked unreadable.
+     */
+    private void scan(LSDSavFile savFile, int songId) {
+        if (savFile.getBlocksUsed(songId) == 0) {
+            songKits[songId] = 0;
+            unreadable[songId] = false;
+            return;
+        }
+        KitReferenceScanner scanner = new KitReferenceScanner();
+        int status = scanner.scan(savFile.workRam, savFile.songStartPtr(songId));
+        songKits[songId] = scanner.kitMask();
+        unreadable[songId] = status != SongDecoder.OK;
+    }
+
+    void songChanged(LSDSavFile savFile, int songId) {
+        scan(savFile, songId);
+    }
+
+    KitUsageIndex copy() {
+        KitUsageIndex copy = new KitUsageIndex(songKits.length);
+        System.arraycopy(songKits, 0, copy.songKits, 0, songKits.length);
+        System.arraycopy(unreadable, 0, copy.unreadable, 0, unreadable.length);
+        return copy;
+    }
+
+    /**
+     * Returns the song slots that could not be decoded, so their kits are not known.
+     */
+    public List<Integer> unreadableSongs() {
+        List<Integer> songs = new ArrayList<>();
+        for (int songId = 0; songId < unreadable.length; ++songId) {
+            if (unreadable[songId]) {
+                songs.add(songId);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Returns a mask with bit n set if kit n is used by the song.
+     */
+    public long songKitMask(int songId) {
+        return songKits[songId];
+    }
+
+    /**
+     * Returns a mask with bit n set if kit n is used by any song.
+     */
+    public long usedKitMask() {
+        long mask = 0;
+        for (long kits : songKits) {
+            mask |= kits;
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the song slots that use the kit in the given ROM bank.
+     */
+    public List<Integer> songsUsingBank(int bank) {
+        List<Integer> songs = new ArrayList<>();
+        int kit = bankKit(bank);
+        if (kit == -1) {
+            return songs;
+        }
+        for (int songId = 0; songId < songKits.length; ++songId) {
+            if ((songKits[songId] & (1L << kit)) != 0) {
+                songs.add(songId);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the banks of romImage that hold a kit no song uses, in ascending order,
+     * or none while any song is unreadable. Only meaningful if romImage is the only ROM
+     * the .sav is used with.
+     */
+    public List<Integer> reclaimableBanks(byte[] romImage) {
+        long used = usedKitMask();
+        List<Integer> banks = new ArrayList<>();
+        if (!unreadableSongs().isEmpty()) {
+            return banks;
+        }
+        for (int kit = 0; kit < KIT_COUNT; ++kit) {
+            int bank = LSDSavFile.kitBank(kit);
+            int offset = bank * RomUtilities.BANK_SIZE;
+            if (offset >= romImage.length || (used & (1L << kit)) != 0) {
+                continue;
+            }
+            if (romImage[offset] == 0x60 && romImage[offset + 1] == 0x40) {
+                banks.add(bank);
+            }
+        }
+        return banks;
+    }
+
+    /**
+     * Returns the kit number stored in a ROM bank, or -1 for banks that cannot hold kits.
+     */
+    static int bankKit(int bank) {
+        for (int kit = 0; kit < KIT_COUNT; ++kit) {
+            if (LSDSavFile.kitBank(kit) == bank) {
+                return kit;
+            }
+        }
+        return -1;
+    }
+}
@@ -3,6 +3,10 @@ package Document;
 import utils.RomUtilities;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import javax.swing.*;
 
@@ -26,6 +30,11 @@ public class LSDSavFile implements Cloneable {
 
     byte[] workRam;
 
+    private BlockAllocationIndex allocationIndex;
+    private KitBankIndex kitBankIndex;
+    private KitUsageIndex kitUsageIndex;
+    private BlockAllocator blockAllocator = BlockAllocator.BEST_FIT_CONTIGUOUS;
+
     public LSDSavFile() {
         workRam = new byte[savFileSize];
     }
@@ -35,6 +44,13 @@ public class LSDSavFile implements Cloneable {
         copy.is64kb = is64kb;
         copy.is64kbHasBeenSet = is64kbHasBeenSet;
         copy.workRam = workRam.clone();
+        if (allocationIndex != null) {
+            copy.allocationIndex = allocationIndex.clone();
+        }
+        copy.kitBankIndex = null;
+        if (kitUsageIndex != null) {
+            copy.kitUsageIndex = kitUsageIndex.copy();
+        }
         return copy;
     }
 
@@ -57,31 +73,73 @@ public class LSDSavFile implements Cloneable {
         return true;
     }
 
+    /**
+     * Returns the block allocation index, building it from the FAT on first use.
+     */
+    private BlockAllocationIndex allocationIndex() {
+        if (allocationIndex == null) {
+            allocationIndex = new BlockAllocationIndex(workRam, blockAllocTableStartPtr, totalBlockCount());
+        }
+        return allocationIndex;
+    }
+
+    /**
+     * Returns the kits used by each song, scanning all songs on first use.
+     */
+    public KitUsageIndex kitUsageIndex() {
+        if (kitUsageIndex == null) {
+            allocationIndex();
+            kitUsageIndex = KitUsageIndex.build(this);
+        }
+        return kitUsageIndex;
+    }
+
+    /**
+     * Clears the banks of romImage that hold kits no song of this .sav uses, so that
+     * new kits can be added there.
+     *
+     * @return the cleared banks
+     */
+    public List<Integer> freeUnusedKits(byte[] romImage) {
+        List<Integer> banks = kitUsageIndex().reclaimableBanks(romImage);
+        for (int bank : banks) {
+            Arrays.fill(romImage, bank * RomUtilities.BANK_SIZE, (bank + 1) * RomUtilities.BANK_SIZE, (byte) -1);
+            if (kitBankIndex != null && kitBankIndex.romImage() == romImage) {
+                kitBankIndex.bankChanged(bank);
+            }
+        }
+        return banks;
+    }
+
     public int totalBlockCount() {
         // FAT takes one block.
         return isSixtyFourKbRam() ? 0xbf - 0x80 : 0xbf;
     }
 
     public void saveAs(String filePath) throws IOException {
-        try (FileOutputStream fileOutputStream = new FileOutputStream(filePath)) {
-            if (isSixtyFourKbRam()) {
-                System.arraycopy(workRam, 0, workRam, 65536, 0x10000);
-            }
-            fileOutputStream.write(workRam);
+        new SavFileWriter(new File(filePath)).save(this);
+    }
+
+    /**
+     * Returns the image to write to file. A 64 kB RAM image is mirrored to the upper half.
+     */
+    byte[] fileImage() {
+        if (isSixtyFourKbRam()) {
+            System.arraycopy(workRam, 0, workRam, 65536, 0x10000);
         }
+        return workRam;
     }
 
     public void clearSong(int index) {
-        int ramPtr = blockAllocTableStartPtr;
-        int block = 0;
-
-        while (block < totalBlockCount()) {
-            int tableValue = workRam[ramPtr];
-            if (index == tableValue) {
-                workRam[ramPtr] = (byte) emptySlotValue;
-            }
-            ramPtr++;
-            block++;
+        BlockAllocationIndex allocationIndex = allocationIndex();
+        for (int block = allocationIndex.firstBlock(index);
+             block != -1;
+             block = allocationIndex.nextBlock(index, block + 1)) {
+            workRam[blockAllocTableStartPtr + block] = (byte) emptySlotValue;
+        }
+        allocationIndex.free(index);
+        if (kitUsageIndex != null) {
+            kitUsageIndex.songChanged(this, index);
         }
 
         clearFileName(index);
@@ -92,17 +150,148 @@ public class LSDSavFile implements Cloneable {
         }
     }
 
-    public int getBlocksUsed(int slot) {
-        int ramPtr = blockAllocTableStartPtr;
-        int block = 0;
-        int blockCount = 0;
+    /**
+     * Re-lays out all songs in consecutive blocks from the start of the block area,
+     * rewriting the FAT and block switches. With recompress set, valid songs are
+     * re-encoded whenever that takes fewer blocks than they currently use. Songs whose
+     * block switches do not link all their blocks stay where they are, since it is
+     * unknown where their switches should point.
+     *
+     * @return number of blocks freed
+     */
+    public int compact(boolean recompress) {
+        final int blockCount = totalBlockCount();
+        final int usedBefore = usedBlockCount();
+        byte[] blocks = new byte[blockCount * blockSize];
+        byte[] table = new byte[blockCount];
+        Arrays.fill(table, (byte) emptySlotValue);
+
+        int usedAfter = 0;
+        int[][] chains = new int[songCount][];
+        for (int songId = 0; songId < songCount; ++songId) {
+            int[] fatOrder = allocationIndex().blocks(songId);
+            int[] chain = new int[fatOrder.length];
+            if (linkedBlocks(songId, fatOrder, chain) == chain.length) {
+                chains[songId] = chain;
+                continue;
+            }
+            for (int block : fatOrder) {
+                System.arraycopy(workRam, blockStartPtr + block * blockSize, blocks, block * blockSize, blockSize);
+                table[block] = (byte) songId;
+            }
+            usedAfter += fatOrder.length;
+        }
+
+        SongDecoder decoder = new SongDecoder();
+        SongEncoder encoder = new SongEncoder();
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        // Re-encoded songs go here first, since the result is dropped unless it is smaller.
+        byte[] encoded = new byte[blocks.length];
 
-        while (block++ < totalBlockCount()) {
-            if (slot == workRam[ramPtr++]) {
-                blockCount++;
+        int newBlock = 0;
+        for (int songId = 0; songId < songCount; ++songId) {
+            int[] chain = chains[songId];
+            if (chain == null || chain.length == 0) {
+                continue;
+            }
+            int songBlocks = -1;
+            if (recompress && decodeSong(songId, decoder, song, 0) == SongDecoder.OK) {
+                songBlocks = encoder.encode(song, 0, encoded, 0, 0);
+            }
+            boolean useEncoded = songBlocks != -1 && songBlocks < chain.length;
+            if (!useEncoded) {
+                songBlocks = chain.length;
             }
+            int previousBlockPtr = -1;
+            for (int i = 0; i < songBlocks; ++i) {
+                while (table[newBlock] != (byte) emptySlotValue) {
+                    // Taken by a song that stays.
+                    ++newBlock;
+                }
+                int blockPtr = newBlock * blockSize;
+                if (useEncoded) {
+                    System.arraycopy(encoded, i * blockSize, blocks, blockPtr, blockSize);
+                } else {
+                    System.arraycopy(workRam, blockStartPtr + chain[i] * blockSize, blocks, blockPtr, blockSize);
+                }
+                if (previousBlockPtr != -1) {
+                    int nextBlockIdPtr = findNextBlockIdPtr(blocks, previousBlockPtr);
+                    if (nextBlockIdPtr >= 0) {
+                        //add one to compensate for unused FAT block
+                        blocks[nextBlockIdPtr] = (byte) (newBlock + 1);
+                    }
+                }
+                table[newBlock] = (byte) songId;
+                previousBlockPtr = blockPtr;
+                ++newBlock;
+            }
+            usedAfter += songBlocks;
         }
-        return blockCount;
+
+        System.arraycopy(blocks, 0, workRam, blockStartPtr, blocks.length);
+        System.arraycopy(table, 0, workRam, blockAllocTableStartPtr, table.length);
+        allocationIndex = new BlockAllocationIndex(workRam, blockAllocTableStartPtr, blockCount);
+        return usedBefore - usedAfter;
+    }
+
+    /**
+     * Returns the blocks of a song in the order they are linked by block switches.
+     * Falls back to FAT order if the links are broken. Blocks that belong to the
+     * song but cannot be reached through the links are put last.
+     */
+    int[] songBlockChain(int songId) {
+        int[] fatOrder = allocationIndex().blocks(songId);
+        int[] chain = new int[fatOrder.length];
+        int length = linkedBlocks(songId, fatOrder, chain);
+        if (length == -1) {
+            return fatOrder;
+        }
+        boolean[] visited = new boolean[totalBlockCount()];
+        for (int i = 0; i < length; ++i) {
+            visited[chain[i]] = true;
+        }
+        for (int fatBlock : fatOrder) {
+            if (!visited[fatBlock]) {
+                chain[length++] = fatBlock;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Follows the block switches of a song from its first block in fatOrder, putting
+     * the blocks in chain.
+     *
+     * @return the number of blocks linked up to the end of the song, or -1 if the links are broken
+     */
+    private int linkedBlocks(int songId, int[] fatOrder, int[] chain) {
+        if (fatOrder.length == 0) {
+            return 0;
+        }
+        boolean[] visited = new boolean[totalBlockCount()];
+        int length = 0;
+        int block = fatOrder[0];
+        while (true) {
+            chain[length++] = block;
+            visited[block] = true;
+            int nextBlockIdPtr = findNextBlockIdPtr(workRam, blockStartPtr + block * blockSize);
+            if (nextBlockIdPtr == END_OF_SONG) {
+                return length;
+            }
+            if (nextBlockIdPtr == MISSING_BLOCK_SWITCH || length == chain.length) {
+                return -1;
+            }
+            int next = (workRam[nextBlockIdPtr] & 0xff) - 1;
+            if (next < 0 || next >= visited.length || visited[next]
+                    || workRam[blockAllocTableStartPtr + next] != songId) {
+                return -1;
+            }
+            block = next;
+        }
+    }
+
+    public int getBlocksUsed(int slot) {
+        return allocationIndex().blocksUsed(slot);
     }
 
     private void clearFileName(int index) {
@@ -118,26 +307,14 @@ public class LSDSavFile implements Cloneable {
     }
 
     private byte getNewSongId() {
-        for (byte slot = 0; slot < songCount; slot++) {
-            if (0 == getBlocksUsed(slot)) {
-                return slot;
-            }
-        }
-        return -1;
+        return (byte) allocationIndex().firstFreeSong();
     }
 
-    private int getBlockIdOfFirstFreeBlock() {
-        int blockAllocTableStartPtr = this.blockAllocTableStartPtr;
-        int block = 0;
-
-        while (block < totalBlockCount()) {
-            int tableValue = workRam[blockAllocTableStartPtr++];
-            if (tableValue < 0 || tableValue > 0x1f) {
-                return block;
-            }
-            block++;
-        }
-        return -1;
+    /**
+     * Sets the strategy for picking the blocks of added songs.
+     */
+    public void setBlockAllocator(BlockAllocator blockAllocator) {
+        this.blockAllocator = blockAllocator;
     }
 
     /*
@@ -157,26 +334,23 @@ public class LSDSavFile implements Cloneable {
     */
 
     public int freeBlockCount() {
-        int ramPtr = blockAllocTableStartPtr;
-        int block = 0;
-        int freeBlockCount = 0;
-
-        while (block < totalBlockCount()) {
-            int tableValue = workRam[ramPtr++];
-            if (tableValue < 0 || tableValue > 0x1f) {
-                freeBlockCount++;
-            }
-            block++;
-        }
-        return freeBlockCount;
+        return allocationIndex().freeBlockCount();
     }
 
     public void loadFromSav(String filePath) throws IOException {
         RandomAccessFile savFile = new RandomAccessFile(filePath, "r");
         savFile.readFully(workRam);
         savFile.close();
+        workRamReplaced();
+    }
 
+    /**
+     * Must be called after all of workRam has been overwritten.
+     */
+    void workRamReplaced() {
         is64kbHasBeenSet = false;
+        allocationIndex = new BlockAllocationIndex(workRam, blockAllocTableStartPtr, totalBlockCount());
+        kitUsageIndex = null;
     }
 
     public void populateSongList(JList<String> songList) {
@@ -202,7 +376,7 @@ public class LSDSavFile implements Cloneable {
         songList.setListData(songStringList);
     }
 
-    private static int convertLsdCharToAscii(int ch) {
+    static int convertLsdCharToAscii(int ch) {
         if (ch >= 65 && ch <= (65 + 25)) {
             //char
             return 'A' + ch - 65;
@@ -242,29 +416,8 @@ public class LSDSavFile implements Cloneable {
     }
 
     public void exportSongToFile(int songId, String filePath, byte[] romImage) {
-        assert (songId >= 0 && songId < 0x20);
-
-        RandomAccessFile file;
         try {
-            file = new RandomAccessFile(filePath, "rw");
-
-            int fileNamePtr = fileNameStartPtr + songId * fileNameLength;
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr++]);
-            file.writeByte(workRam[fileNamePtr]);
-
-            int fileVersionPtr = fileVersionStartPtr + songId;
-            file.writeByte(workRam[fileVersionPtr]);
-
-            writeSongBlocks(songId, file);
-            writeKits(romImage, songId, file);
-
-            file.close();
+            exportSong(songId, new File(filePath), romImage);
         } catch (IOException e) {
             JOptionPane.showMessageDialog(null,
                     e.getMessage(),
@@ -273,381 +426,300 @@ public class LSDSavFile implements Cloneable {
         }
     }
 
-    private void writeKits(byte[] romImage, int songId, RandomAccessFile file) throws IOException {
-        TreeSet<Integer> kitsToWrite = usedKits(songId);
-        while (true) {
-            Integer kit = kitsToWrite.pollFirst();
-            if (kit == null) {
-                break;
-            }
-            // because legacy, kits are in banks 8-26, 32-63.
-            kit += 8;
-            if (kit > 26) {
-                kit += 5;
-            }
-            int kitOffset = kit * 0x4000;
-            for (int i = 0; i < 0x4000; ++i) {
-                file.writeByte(romImage[kitOffset + i]);
-            }
-        }
+    /**
+     * Writes a song and its kits to an .lsdprj file.
+     */
+    public void exportSong(int songId, File file, byte[] romImage) throws IOException {
+        writeFully(file, songFileBuffers(songId, romImage));
     }
 
-    TreeSet<Integer> usedKits(int songId) {
-        byte[] unpackedSong = unpackSong(songId);
-        assert (unpackedSong != null);
-        assert (unpackedSong.length == 0x8000);
+    /**
+     * Returns the contents of an .lsdprj file for the song as buffers that share
+     * memory with this .sav and romImage. The buffers are only valid until either
+     * is modified, but can be written by any thread until then.
+     */
+    public ByteBuffer[] songFileBuffers(int songId, byte[] romImage) {
+        assert (songId >= 0 && songId < 0x20);
+        int[] blocks = songBlockChain(songId);
+        long kits = usedKits(songId);
+        ByteBuffer[] buffers = new ByteBuffer[1 + blocks.length + Long.bitCount(kits)];
+        int i = 0;
+
+        byte[] header = new byte[fileNameLength + 1];
+        System.arraycopy(workRam, fileNameStartPtr + songId * fileNameLength, header, 0, fileNameLength);
+        header[fileNameLength] = workRam[fileVersionStartPtr + songId];
+        buffers[i++] = ByteBuffer.wrap(header);
 
-        TreeSet<Integer> kits = new TreeSet<>();
-        for (int instr = 0; instr < 0x40; ++instr) {
-            int instrPtr = 0x3080 + instr * 0x10;
-            if (unpackedSong[instrPtr] != 2) {
-                continue; // Not kit instrument.
+        for (int block : blocks) {
+            buffers[i++] = ByteBuffer.wrap(workRam, blockStartPtr + block * blockSize, blockSize).slice();
+        }
+        for (int kit = 0; kit < 0x40; ++kit) {
+            if ((kits & (1L << kit)) == 0) {
+                continue;
             }
-            kits.add(unpackedSong[instrPtr + 2] & 0x3f);
-            kits.add(unpackedSong[instrPtr + 9] & 0x3f);
+            int kitOffset = kitBank(kit) * RomUtilities.BANK_SIZE;
+            buffers[i++] = ByteBuffer.wrap(romImage, kitOffset, RomUtilities.BANK_SIZE).slice();
         }
-        return kits;
+        return buffers;
     }
 
-    void writeSongBlocks(int songId, RandomAccessFile file) throws IOException {
-        int blockId = 0;
-        int blockAllocTablePtr = blockAllocTableStartPtr;
-
-        while (blockId < totalBlockCount()) {
-            if (songId == workRam[blockAllocTablePtr++]) {
-                int blockPtr = blockStartPtr + blockId * blockSize;
-                for (int byteIndex = 0; byteIndex < blockSize; byteIndex++) {
-                    file.writeByte(workRam[blockPtr++]);
-                }
+    /**
+     * Replaces the contents of file with buffers, using gather writes.
+     */
+    public static void writeFully(File file, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
             }
-            blockId++;
         }
     }
 
     /**
-     * Decodes a song. Returns 32 kB with decoded song data, or null on failure.
+     * Returns the ROM bank of kit number kit.
      */
-    private byte[] unpackSong(int songId) {
-        byte[] dstBuffer = new byte[0x8000];
-        int dstPos = 0;
+    public static int kitBank(int kit) {
+        // because legacy, kits are in banks 8-26, 32-63.
+        int bank = kit + 8;
+        if (bank > 26) {
+            bank += 5;
+        }
+        return bank;
+    }
 
-        int blockId = 0;
-        int blockAllocTablePtr = blockAllocTableStartPtr;
+    /**
+     * Returns a mask with bit n set if kit n is used by an instrument of the decoded song
+     * at song[offset..offset + 0x8000).
+     */
+    public static long usedKitMask(byte[] song, int offset) {
+        return new DecodedSong(song, offset).usedKitMask();
+    }
 
-        while (blockId < totalBlockCount()) {
-            if (songId == workRam[blockAllocTablePtr++]) {
-                break;
-            }
-            blockId++;
-        }
+    /**
+     * Returns a mask with bit n set if kit n is used by an instrument of the song.
+     */
+    long usedKits(int songId) {
+        KitReferenceScanner scanner = new KitReferenceScanner();
+        int status = scanner.scan(workRam, songStartPtr(songId));
+        assert (status == SongDecoder.OK);
+        return scanner.kitMask();
+    }
 
-        int srcPtr = blockStartPtr + blockSize * blockId;
+    /**
+     * Returns work RAM address of the first block of a song, or -1 if the slot is empty.
+     */
+    int songStartPtr(int songId) {
+        int blockId = allocationIndex().firstBlock(songId);
+        return blockId == -1 ? -1 : blockStartPtr + blockSize * blockId;
+    }
 
-        try {
-            while (true) {
-                switch (workRam[srcPtr]) {
-                    case (byte) 0xc0:
-                        srcPtr++;
-                        if (workRam[srcPtr] == (byte) 0xc0) {
-                            srcPtr++;
-                            dstBuffer[dstPos++] = (byte) 0xc0;
-                        } else {
-                            // rle
-                            byte b = workRam[srcPtr++];
-                            byte count = workRam[srcPtr++];
-                            while (count-- != 0) {
-                                dstBuffer[dstPos++] = b;
-                            }
-                        }
-                        break;
+    /**
+     * Decodes a song into dst[dstOffset..dstOffset + 0x8000).
+     *
+     * @return SongDecoder status code
+     */
+    public int decodeSong(int songId, SongDecoder decoder, byte[] dst, int dstOffset) {
+        return decoder.decode(workRam, songStartPtr(songId), dst, dstOffset);
+    }
 
-                    case (byte) 0xe0:
-                        byte count;
-                        srcPtr++;
-                        switch (workRam[srcPtr]) {
-                            case (byte) 0xe0: // e0
-                                srcPtr++;
-                                dstBuffer[dstPos++] = (byte) 0xe0;
-                                break;
-
-                            case (byte) 0xff: // done!
-                                return dstPos == 0x8000 ? dstBuffer : null;
-
-                            case (byte) 0xf0: //wave
-                                srcPtr++;
-                                count = workRam[srcPtr++];
-                                while (count-- != 0) {
-                                    dstBuffer[dstPos++] = (byte) 0x8e;
-                                    dstBuffer[dstPos++] = (byte) 0xcd;
-                                    dstBuffer[dstPos++] = (byte) 0xcc;
-                                    dstBuffer[dstPos++] = (byte) 0xbb;
-                                    dstBuffer[dstPos++] = (byte) 0xaa;
-                                    dstBuffer[dstPos++] = (byte) 0xa9;
-                                    dstBuffer[dstPos++] = (byte) 0x99;
-                                    dstBuffer[dstPos++] = (byte) 0x88;
-                                    dstBuffer[dstPos++] = (byte) 0x87;
-                                    dstBuffer[dstPos++] = (byte) 0x76;
-                                    dstBuffer[dstPos++] = (byte) 0x66;
-                                    dstBuffer[dstPos++] = (byte) 0x55;
-                                    dstBuffer[dstPos++] = (byte) 0x54;
-                                    dstBuffer[dstPos++] = (byte) 0x43;
-                                    dstBuffer[dstPos++] = (byte) 0x32;
-                                    dstBuffer[dstPos++] = (byte) 0x31;
-                                }
-                                break;
-
-                            case (byte) 0xf1: //instr
-                                srcPtr++;
-                                count = workRam[srcPtr++];
-                                while (count-- != 0) {
-                                    dstBuffer[dstPos++] = (byte) 0xa8;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = (byte) 0xff;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 3;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = (byte) 0xd0;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = (byte) 0xf3;
-                                    dstBuffer[dstPos++] = 0;
-                                    dstBuffer[dstPos++] = 0;
-                                }
-                                break;
-
-                            default: // block switch
-                                int block = workRam[srcPtr] & 0xff;
-                                srcPtr = 0x8000 + blockSize * block;
-                                break;
-                        }
-                        break;
+    /**
+     * Decodes a song into dst, starting at its position.
+     *
+     * @return SongDecoder status code
+     */
+    public int decodeSong(int songId, SongDecoder decoder, ByteBuffer dst) {
+        return decoder.decode(workRam, songStartPtr(songId), dst);
+    }
 
-                    default:
-                        dstBuffer[dstPos++] = workRam[srcPtr++];
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return null;
-        }
+    /**
+     * Passes each decoded byte of a song to visitor, without storing the song.
+     *
+     * @return SongDecoder status code
+     */
+    public int visitSong(int songId, SongDecoder decoder, SongDecoder.Visitor visitor) {
+        return decoder.visit(workRam, songStartPtr(songId), visitor);
     }
 
     public boolean isValid(int songId) {
-        return unpackSong(songId) != null;
+        return new SongDecoder().validate(workRam, songStartPtr(songId)) == SongDecoder.OK;
     }
 
-    static class AddSongException extends Exception {
+    public static class AddSongException extends Exception {
         AddSongException(String message) {
             super(message);
         }
     }
 
-    public void addSongFromFile(String filePath, byte[] romImage) throws Exception {
+    public void addSongFromFile(String filePath, byte[] romImage) throws IOException, AddSongException {
+        addSong(SongFile.read(new File(filePath)), romImage);
+    }
+
+    /**
+     * Reads an .lsdsng/.lsdprj from channel and adds it, see addSong(SongFile, byte[]).
+     *
+     * @param name used in error messages
+     */
+    public void addSong(ReadableByteChannel channel, String name, byte[] romImage)
+            throws IOException, AddSongException {
+        addSong(SongFile.read(channel, name), romImage);
+    }
+
+    /**
+     * Adds a song to the first free slot and its kits to romImage, reusing kits that are
+     * already in the ROM. Checks that the song, its blocks and its kits fit before
+     * writing anything, so neither the .sav nor the ROM are modified on failure.
+     */
+    public void addSong(SongFile songFile, byte[] romImage) throws AddSongException {
         final byte songId = getNewSongId();
         if (songId == -1) {
             throw new AddSongException("Out of song slots!");
         }
-
-        try (FileInputStream fileInputStream = new FileInputStream(filePath)) {
-            writeFileNameAndVersion(fileInputStream, songId);
-            copySongToWorkRam(fileInputStream, songId);
-            patchKits(fileInputStream, songId, romImage);
-        } catch (Exception e) {
-            clearSong(songId);
-            throw e;
+        int[] blocks = songFile.blockCount() > freeBlockCount()
+                ? null
+                : blockAllocator.allocate(allocationIndex().freeExtents(), songFile.blockCount());
+        if (blocks == null) {
+            throw new AddSongException("Out of blocks!");
         }
-    }
+        KitBankIndex kitBankIndex = songFile.kitCount() == 0 ? null : kitBankIndex(romImage);
+        int[] newKits = placeKits(kitBankIndex, songFile);
 
-    private void writeFileNameAndVersion(FileInputStream fileInputStream, byte songId) throws IOException {
-        byte[] fileName = new byte[8];
-        int read = fileInputStream.read(fileName);
-        assert(read == fileName.length);
-        byte fileVersion = (byte)fileInputStream.read();
-
-        int fileNamePtr = fileNameStartPtr + songId * fileNameLength;
-        for (int i = 0; i < 8; ++i) {
-            workRam[fileNamePtr++] = fileName[i];
+        writeFileNameAndVersion(songFile.data(), songId);
+        copySongToWorkRam(songFile, songId, blocks);
+        if (kitBankIndex != null) {
+            addMissingKits(kitBankIndex, songFile, newKits);
+            adjustInstruments(songId, newKits);
+        }
+        if (kitUsageIndex != null) {
+            kitUsageIndex.songChanged(this, songId);
         }
-
-        int fileVersionPtr = fileVersionStartPtr + songId;
-        workRam[fileVersionPtr] = fileVersion;
     }
 
-    private void patchKits(FileInputStream fileInputStream,
-                           byte songId,
-                           byte[] romImage) throws IOException, AddSongException {
-        ArrayList<byte[]> lsdSngKits = new ArrayList<>();
-        while (true) {
-            byte[] kit = new byte[0x4000];
-            if (fileInputStream.read(kit) != kit.length) {
-                break;
-            }
-            lsdSngKits.add(kit);
-        }
+    private void writeFileNameAndVersion(byte[] header, byte songId) {
+        System.arraycopy(header, 0, workRam, fileNameStartPtr + songId * fileNameLength, fileNameLength);
+        workRam[fileVersionStartPtr + songId] = header[fileNameLength];
+    }
 
-        if (lsdSngKits.size() == 0) {
-            return;
+    /**
+     * Picks a ROM bank for each kit of songFile: the bank already holding an identical kit,
+     * the bank picked for an identical kit earlier in the same song, or else a free bank,
+     * negated to mark that the kit must be copied there.
+     */
+    private int[] placeKits(KitBankIndex kitBankIndex, SongFile songFile) throws AddSongException {
+        int[] newKits = new int[songFile.kitCount()];
+        if (newKits.length == 0) {
+            return newKits;
         }
-
-        // Check if kits are already in ROM. If so, they should be reused.
-        int[] newKits = new int[lsdSngKits.size()];
-        for (int romKit = 0; romKit < romImage.length / 0x4000; ++romKit) {
-            for (int kit = 0; kit < lsdSngKits.size(); ++kit) {
-                boolean kitsAreEqual = true;
-                for (int i = 0; i < 0x4000; ++i) {
-                    if (lsdSngKits.get(kit)[i] != romImage[romKit * 0x4000 + i]) {
-                        kitsAreEqual = false;
-                        break;
-                    }
-                }
-                if (kitsAreEqual) {
-                    newKits[kit] = romKit;
-                }
+        byte[] romImage = kitBankIndex.romImage();
+        int freeBank = 0;
+        for (int kit = 0; kit < newKits.length; ++kit) {
+            int bank = kitBankIndex.find(songFile.data(), songFile.kitOffset(kit));
+            if (bank > 0) {
+                newKits[kit] = bank;
+                continue;
+            }
+            bank = findCopiedKit(songFile, newKits, kit);
+            if (bank < 0) {
+                newKits[kit] = bank;
+                continue;
             }
+            freeBank = findFreeKit(romImage, freeBank);
+            if (freeBank == -1) {
+                throw new AddSongException("Not enough space for kits! Remove some and try again!");
+            }
+            newKits[kit] = -freeBank++;
         }
-
-        addMissingKits(romImage, lsdSngKits, newKits);
-        adjustInstruments(songId, newKits);
+        return newKits;
     }
 
-    private List<Integer> instrumentKitLocations(int songId) {
-        int songPos = 0;
-        int blockId = 0;
-        int blockAllocTablePtr = blockAllocTableStartPtr;
-        List<Integer> instrumentKitLocations = new LinkedList<>();
-
-        while (blockId < totalBlockCount()) {
-            if (songId == workRam[blockAllocTablePtr++]) {
-                break;
+    /**
+     * Returns the negated bank picked for a kit before kit in songFile with the same
+     * contents, or 0 if there is none.
+     */
+    private static int findCopiedKit(SongFile songFile, int[] newKits, int kit) {
+        byte[] data = songFile.data();
+        int offset = songFile.kitOffset(kit);
+        for (int other = 0; other < kit; ++other) {
+            if (newKits[other] >= 0) {
+                continue;
             }
-            blockId++;
-        }
-
-        int srcPtr = blockStartPtr + blockSize * blockId;
-        boolean[] isKit = new boolean[64];
-
-        try {
-            while (true) {
-                switch (workRam[srcPtr]) {
-                    case (byte) 0xc0:
-                        srcPtr++;
-                        if (workRam[srcPtr] == (byte) 0xc0) {
-                            srcPtr++;
-                            songPos++;
-                        } else {
-                            srcPtr++;
-                            byte count = workRam[srcPtr++];
-                            while (count-- != 0) {
-                                songPos++;
-                            }
-                        }
-                        break;
-
-                    case (byte) 0xe0:
-                        byte count;
-                        srcPtr++;
-                        switch (workRam[srcPtr]) {
-                            case (byte) 0xe0: // e0
-                                srcPtr++;
-                                songPos++;
-                                break;
-
-                            case (byte) 0xff: // done!
-                                assert(songPos == 0x8000);
-                                return instrumentKitLocations;
-
-                            case (byte) 0xf0: //wave
-                            case (byte) 0xf1: //instr
-                                srcPtr++;
-                                count = workRam[srcPtr++];
-                                while (count-- != 0) {
-                                    songPos += 16;
-                                }
-                                break;
-
-                            default: // block switch
-                                int block = workRam[srcPtr] & 0xff;
-                                srcPtr = 0x8000 + blockSize * block;
-                                break;
-                        }
-                        break;
-
-                    default:
-                        // Regular byte write.
-                        boolean isInstrumentWrite = songPos >= 0x3080 && songPos < 0x3480;
-                        if (isInstrumentWrite) {
-                            int instr = (songPos - 0x3080) / 0x10;
-                            switch (songPos % 16) {
-                                case 0:
-                                    if (workRam[srcPtr] == 2) {
-                                        isKit[instr] = true;
-                                    }
-                                    break;
-                                case 2:
-                                case 9:
-                                    if (isKit[instr]) {
-                                        instrumentKitLocations.add(srcPtr);
-                                    }
-                                    break;
-                            }
-                        }
-                        ++songPos;
-                        ++srcPtr;
-                }
+            int otherOffset = songFile.kitOffset(other);
+            int i = 0;
+            while (i < RomUtilities.BANK_SIZE && data[offset + i] == data[otherOffset + i]) {
+                ++i;
+            }
+            if (i == RomUtilities.BANK_SIZE) {
+                return newKits[other];
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return null;
         }
+        return 0;
     }
 
+    /**
+     * Points the kit instruments of a newly added song at the banks its kits were
+     * placed in. The song file stores its kits in ascending kit number order, so
+     * the n:th lowest kit used by the song becomes newKits[n].
+     */
     private void adjustInstruments(int songId, int[] newKits) {
-        List<Integer> instrumentKitLocations = instrumentKitLocations(songId);
-        assert(instrumentKitLocations != null);
+        KitReferenceScanner scanner = new KitReferenceScanner();
+        int status = scanner.scan(workRam, songStartPtr(songId));
+        assert (status == SongDecoder.OK);
 
-        TreeSet<Integer> lsdSngKits = new TreeSet<>();
-        for (Integer instrumentKitLocation : instrumentKitLocations) {
-            int kitId = workRam[instrumentKitLocation] & 0x3f;
-            lsdSngKits.add(kitId);
+        int[] kitMap = new int[0x40];
+        for (int kit = 0; kit < kitMap.length; ++kit) {
+            kitMap[kit] = kit;
         }
-
-        HashMap<Integer, Integer> kitMap = new HashMap<>();
+        long kits = scanner.kitMask();
         for (int newKit : newKits) {
-            Integer oldKit = lsdSngKits.pollFirst();
+            int oldKit = Long.numberOfTrailingZeros(kits);
+            if (oldKit == 64) {
+                break;
+            }
+            kits &= kits - 1;
             if (newKit > 26) {
                 newKit -= 5;
             }
-            newKit -= 8;
-            kitMap.put(oldKit, newKit);
+            kitMap[oldKit] = newKit - 8;
         }
+        scanner.remap(workRam, kitMap);
+    }
 
-        for (Integer instrumentKitLocation : instrumentKitLocations) {
-            int value = workRam[instrumentKitLocation];
-            int newValue = (value & ~0x3f) | kitMap.get(value & 0x3f);
-            workRam[instrumentKitLocation] = (byte)newValue;
+    /**
+     * Returns the kit fingerprint index for romImage, reusing the one from the
+     * previous import when it was made for the same array.
+     */
+    private KitBankIndex kitBankIndex(byte[] romImage) {
+        if (kitBankIndex == null || kitBankIndex.romImage() != romImage) {
+            kitBankIndex = new KitBankIndex(romImage);
         }
+        return kitBankIndex;
     }
 
-    private void addMissingKits(byte[] romImage, ArrayList<byte[]> lsdSngKits, int[] newKits) throws AddSongException {
+    private void addMissingKits(KitBankIndex kitBankIndex, SongFile songFile, int[] newKits) {
+        byte[] romImage = kitBankIndex.romImage();
         for (int kit = 0; kit < newKits.length; ++kit) {
-            if (newKits[kit] != 0) {
+            if (newKits[kit] >= 0) {
                 continue;
             }
-            int newKit = findFreeKit(romImage);
-            if (newKit == -1) {
-                throw new AddSongException("Not enough space for kits! Remove some and try again!");
-            }
+            int newKit = -newKits[kit];
             newKits[kit] = newKit;
             // Copy kit.
             // TODO: this might be a good place to swizzle old kits for improved sound quality. See sbc.java
-            System.arraycopy(lsdSngKits.get(kit), 0, romImage, newKit * 0x4000, 0x4000);
+            System.arraycopy(songFile.data(), songFile.kitOffset(kit), romImage, newKit * 0x4000, 0x4000);
+            kitBankIndex.bankChanged(newKit);
         }
     }
 
-    private int findFreeKit(byte[] romImage) {
-        for (int bank = 0; bank < romImage.length / RomUtilities.BANK_SIZE; ++bank) {
+    /**
+     * Returns the first bank from fromBank on that is not in use, or -1.
+     */
+    private int findFreeKit(byte[] romImage, int fromBank) {
+        for (int bank = fromBank; bank < romImage.length / RomUtilities.BANK_SIZE; ++bank) {
             int offset = bank * RomUtilities.BANK_SIZE;
             if (romImage[offset] == -1 && romImage[offset + 1] == -1) {
                 return bank;
@@ -656,27 +728,25 @@ public class LSDSavFile implements Cloneable {
         return -1;
     }
 
-    private void copySongToWorkRam(FileInputStream fileInputStream, byte songId) throws IOException, AddSongException {
+    /**
+     * Copies the blocks of songFile to the given free blocks, linking them with block
+     * switches in ascending block order.
+     */
+    private void copySongToWorkRam(SongFile songFile, byte songId, int[] blocks) {
+        Arrays.sort(blocks);
         int nextBlockIdPtr = 0;
-        while (true) {
-            int blockId = getBlockIdOfFirstFreeBlock();
-            if (blockId == -1) {
-                throw new AddSongException("Out of blocks!");
-            }
-
+        for (int i = 0; i < songFile.blockCount(); ++i) {
+            int blockId = blocks[i];
             if (0 != nextBlockIdPtr) {
                 //add one to compensate for unused FAT block
                 workRam[nextBlockIdPtr] = (byte) (blockId + 1);
             }
             workRam[blockAllocTableStartPtr + blockId] = songId;
+            allocationIndex().allocate(blockId, songId);
             int blockPtr = blockStartPtr + blockId * blockSize;
-            for (int i = 0; i < blockSize; ++i) {
-                workRam[blockPtr++] = (byte)fileInputStream.read();
-            }
-            nextBlockIdPtr = getNextBlockIdPtr(blockId);
-            if (nextBlockIdPtr == -1) {
-                return;
-            }
+            System.arraycopy(songFile.data(), SongFile.HEADER_SIZE + i * blockSize, workRam, blockPtr, blockSize);
+            // SongFile has checked that all but the last block end with a block switch.
+            nextBlockIdPtr = findNextBlockIdPtr(workRam, blockPtr);
         }
     }
 
@@ -688,30 +758,34 @@ public class LSDSavFile implements Cloneable {
         return workRam[activeFileSlot];
     }
 
-    /* Returns address of next block id pointer (E0 XX), if one exists in block.
-     * If there is none, return -1.
+    static final int END_OF_SONG = -1;
+    static final int MISSING_BLOCK_SWITCH = -2;
+
+    /* Scans the block at blockPtr in ram. Returns address of the next block id
+     * pointer (E0 XX), END_OF_SONG if the block ends the song (E0 FF), or
+     * MISSING_BLOCK_SWITCH if the block has neither.
      */
-    private int getNextBlockIdPtr(int block) throws AddSongException {
-        int ramPtr = blockStartPtr + blockSize * block;
+    static int findNextBlockIdPtr(byte[] ram, int blockPtr) {
+        int ramPtr = blockPtr;
         int byteCounter = 0;
 
-        while (byteCounter < blockSize) {
-            if (workRam[ramPtr] == (byte) 0xc0) {
+        while (byteCounter < SongDecoder.BLOCK_SIZE && ramPtr + 1 < ram.length) {
+            if (ram[ramPtr] == (byte) 0xc0) {
                 ramPtr++;
                 byteCounter++;
-                if (workRam[ramPtr] != (byte) 0xc0) {
+                if (ram[ramPtr] != (byte) 0xc0) {
                     //rle
                     ramPtr++;
                     byteCounter++;
                 }
-            } else if (workRam[ramPtr] == (byte) 0xe0) {
-                switch (workRam[ramPtr + 1]) {
+            } else if (ram[ramPtr] == (byte) 0xe0) {
+                switch (ram[ramPtr + 1]) {
                     case (byte) 0xe0:
                         ramPtr++;
                         byteCounter++;
                         break;
                     case (byte) 0xff:
-                        return -1;
+                        return END_OF_SONG;
                     case (byte) 0xf0: //wave
                     case (byte) 0xf1: //instr
                         ramPtr += 2;
@@ -724,9 +798,7 @@ public class LSDSavFile implements Cloneable {
             ramPtr++;
             byteCounter++;
         }
-        // If the pointer to next block is missing, and this is not the last
-        // block of a song, the song is most likely corrupted.
-        throw new AddSongException("Song corrupted!");
+        return MISSING_BLOCK_SWITCH;
     }
 
 }
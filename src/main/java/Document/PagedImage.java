@@ -0,0 +1,126 @@
+package Document;
+
+import java.util.BitSet;
+
+/**
+ * Byte image split into fixed-size pages, as Document and its undo journal use it.
+ * <p>
+ * Pages are never modified in place: assign() and replacePage() swap in new page arrays.
+ * Page arrays handed out through pageReferences() therefore stay valid as a record of
+ * earlier states without being copied. Pages replaced since the last clearDirty() are
+ * flagged dirty.
+ */
+class PagedImage {
+    private final int pageSize;
+    private final byte[][] pages;
+    private final BitSet dirtyPages = new BitSet();
+
+    PagedImage(byte[] data, int pageSize) {
+        if (data.length % pageSize != 0) {
+            throw new IllegalArgumentException("Image size must be a multiple of page size");
+        }
+        this.pageSize = pageSize;
+        pages = new byte[data.length / pageSize][];
+        for (int page = 0; page < pages.length; ++page) {
+            pages[page] = new byte[pageSize];
+            System.arraycopy(data, page * pageSize, pages[page], 0, pageSize);
+        }
+    }
+
+    int length() {
+        return pages.length * pageSize;
+    }
+
+    int pageCount() {
+        return pages.length;
+    }
+
+    void read(int offset, byte[] dst, int dstOffset, int length) {
+        while (length > 0) {
+            int page = offset / pageSize;
+            int pageOffset = offset % pageSize;
+            int count = Math.min(length, pageSize - pageOffset);
+            System.arraycopy(pages[page], pageOffset, dst, dstOffset, count);
+            offset += count;
+            dstOffset += count;
+            length -= count;
+        }
+    }
+
+    byte[] toByteArray() {
+        byte[] data = new byte[length()];
+        read(0, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Makes this image equal to data, replacing only the pages that differ.
+     *
+     * @return the replaced pages
+     */
+    BitSet assign(byte[] data) {
+        if (data.length != length()) {
+            throw new IllegalArgumentException("Image size mismatch");
+        }
+        BitSet changedPages = new BitSet();
+        for (int page = 0; page < pages.length; ++page) {
+            if (!pageEquals(pages[page], data, page * pageSize)) {
+                byte[] copy = new byte[pageSize];
+                System.arraycopy(data, page * pageSize, copy, 0, pageSize);
+                pages[page] = copy;
+                changedPages.set(page);
+            }
+        }
+        dirtyPages.or(changedPages);
+        return changedPages;
+    }
+
+    boolean contentEquals(byte[] data) {
+        if (data == null || data.length != length()) {
+            return false;
+        }
+        for (int page = 0; page < pages.length; ++page) {
+            if (!pageEquals(pages[page], data, page * pageSize)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the pages replaced since the last clearDirty().
+     */
+    BitSet dirtyPages() {
+        return (BitSet) dirtyPages.clone();
+    }
+
+    void clearDirty() {
+        dirtyPages.clear();
+    }
+
+    /**
+     * Returns the page arrays, which must not be modified.
+     */
+    byte[][] pageReferences() {
+        return pages.clone();
+    }
+
+    byte[] page(int page) {
+        return pages[page];
+    }
+
+    void replacePage(int page, byte[] data) {
+        assert data.length == pageSize;
+        pages[page] = data;
+        dirtyPages.set(page);
+    }
+
+    private static boolean pageEquals(byte[] page, byte[] data, int offset) {
+        for (int i = 0; i < page.length; ++i) {
+            if (page[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Loads and saves one .sav file, rewriting only the 0x200 byte blocks that changed
+ * since it was last loaded or saved through this writer.
+ * <p>
+ * Changed blocks are written in place with positional writes and flushed with a single
+ * force(). If the file is new, or its size or modification time no longer match what was
+ * last loaded or saved, the whole image is written to a uniquely named temporary file
+ * that replaces the .sav by atomic rename, so an interrupted save never leaves a
+ * half-written .sav. Since FAT file systems only record modification times to 2 seconds,
+ * the blocks about to be written are also read back first, and a full rewrite is done
+ * if someone else changed them.
+ */
+public class SavFileWriter {
+    static final int BLOCK_SIZE = 0x200;
+    // Temporary file names.
+    private static final Random random = new SecureRandom();
+
+    private final File file;
+    // File contents as of the last load or save, or null if unknown.
+    private byte[] savedImage;
+    private long savedLastModified;
+
+    public SavFileWriter(File file) {
+        this.file = file;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public void load(LSDSavFile savFile) throws IOException {
+        savedImage = null;
+        savFile.loadFromSav(file.getPath());
+        savedImage = savFile.workRam.clone();
+        savedLastModified = file.lastModified();
+    }
+
+    /**
+     * @return the number of blocks written
+     */
+    public int save(LSDSavFile savFile) throws IOException {
+        byte[] image = savFile.fileImage();
+        if (savedImage == null
+                || savedImage.length != image.length
+                || file.length() != image.length
+                || file.lastModified() != savedLastModified) {
+            return saveAll(image);
+        }
+
+        List<Integer> changedBlocks = new ArrayList<>();
+        for (int offset = 0; offset < image.length; offset += BLOCK_SIZE) {
+            if (!blockEquals(image, savedImage, offset)) {
+                changedBlocks.add(offset);
+            }
+        }
+        if (changedBlocks.isEmpty()) {
+            return 0;
+        }
+        boolean unchanged;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            unchanged = blocksUnchanged(channel, changedBlocks);
+            if (unchanged) {
+                for (int offset : changedBlocks) {
+                    ByteBuffer block = ByteBuffer.wrap(image, offset, BLOCK_SIZE);
+                    while (block.hasRemaining()) {
+                        channel.write(block, block.position());
+                    }
+                    System.arraycopy(image, offset, savedImage, offset, BLOCK_SIZE);
+                }
+                channel.force(false);
+            }
+        }
+        if (!unchanged) {
+            // Rewritten by someone else within the modification time resolution.
+            return saveAll(image);
+        }
+        savedLastModified = file.lastModified();
+        return changedBlocks.size();
+    }
+
+    private int saveAll(byte[] image) throws IOException {
+        writeAtomically(file, image);
+        savedImage = image.clone();
+        savedLastModified = file.lastModified();
+        return image.length / BLOCK_SIZE;
+    }
+
+    /**
+     * Returns true if the blocks at the given offsets still hold what was last loaded or saved.
+     */
+    private boolean blocksUnchanged(FileChannel channel, List<Integer> offsets) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        for (int offset : offsets) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    return false;
+                }
+            }
+            if (!blockEquals(buffer.array(), 0, savedImage, offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces file with image through a uniquely named temporary file in the same
+     * directory, so that readers see either the old or the new contents. Also used for
+     * ROM images.
+     */
+    public static void writeAtomically(File file, byte[] image) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        // Not createTempFile(), which would give the .sav owner-only permissions.
+        Path temp = null;
+        try {
+            FileChannel channel = null;
+            while (channel == null) {
+                temp = target.resolveSibling(String.format("%s.%08x.tmp", file.getName(), random.nextInt()));
+                try {
+                    channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException e) {
+                    temp = null;
+                }
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(image);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static boolean blockEquals(byte[] a, byte[] b, int offset) {
+        return blockEquals(a, offset, b, offset);
+    }
+
+    private static boolean blockEquals(byte[] a, int aOffset, byte[] b, int bOffset) {
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
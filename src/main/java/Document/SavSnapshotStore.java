@@ -0,0 +1,327 @@
+package Document;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Directory of .sav snapshots that stores each distinct 0x200 byte block only once.
+ * <p>
+ * blocks.pack holds the unique blocks back to back. Each snapshot is a manifest file
+ * listing, for every block of the .sav, its index in the pack, so a snapshot of a .sav
+ * that only differs from earlier ones by a few blocks takes a few blocks plus 1 kB.
+ * Blocks are identified by SHA-1. blocks.index holds the digest of each pack block in
+ * pack order, so opening the store only reads the digests; pack blocks without a digest,
+ * e.g. after an interrupted snapshot, are hashed and added to it when the store is opened.
+ * Writers hold a lock on the pack, so several stores may share a directory.
+ */
+public class SavSnapshotStore {
+    static final int BLOCK_SIZE = 0x200;
+    private static final int DIGEST_SIZE = 20;
+    private static final String PACK_FILE = "blocks.pack";
+    private static final String INDEX_FILE = "blocks.index";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    // Starts with a character snapshot names cannot contain.
+    private static final String TEMP_PREFIX = "~";
+    private static final int MANIFEST_MAGIC = 0x4c534453;  // "LSDS"
+
+    private final File directory;
+    private final Map<ByteBuffer, Integer> blockIndices = new HashMap<>();
+    private int packBlockCount;
+
+    private SavSnapshotStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the store in directory, creating it if needed.
+     */
+    public static SavSnapshotStore open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        SavSnapshotStore store = new SavSnapshotStore(directory);
+        try (FileChannel pack = store.openPack();
+             FileChannel index = store.openIndex()) {
+            FileLock lock = pack.lock();
+            try {
+                store.update(pack, index);
+            } finally {
+                lock.release();
+            }
+        }
+        return store;
+    }
+
+    private FileChannel openPack() throws IOException {
+        return FileChannel.open(new File(directory, PACK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private FileChannel openIndex() throws IOException {
+        return FileChannel.open(new File(directory, INDEX_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Adds the blocks written to the pack since the store was opened or last updated,
+     * e.g. by another store, to blockIndices. Must be called with the pack locked.
+     */
+    private void update(FileChannel pack, FileChannel index) throws IOException {
+        // A partially written block at the end is left over from an interrupted snapshot.
+        int blockCount = (int) (pack.size() / BLOCK_SIZE);
+        pack.truncate((long) blockCount * BLOCK_SIZE);
+        int indexedCount = (int) Math.min(blockCount, index.size() / DIGEST_SIZE);
+        index.truncate((long) indexedCount * DIGEST_SIZE);
+
+        if (indexedCount > packBlockCount) {
+            ByteBuffer digests = ByteBuffer.allocate((indexedCount - packBlockCount) * DIGEST_SIZE);
+            readFully(index, digests, (long) packBlockCount * DIGEST_SIZE);
+            for (int block = packBlockCount; block < indexedCount; ++block) {
+                byte[] digest = new byte[DIGEST_SIZE];
+                digests.get(digest);
+                blockIndices.putIfAbsent(ByteBuffer.wrap(digest), block);
+            }
+        }
+        if (blockCount > indexedCount) {
+            ByteBuffer blocks = ByteBuffer.allocate((blockCount - indexedCount) * BLOCK_SIZE);
+            readFully(pack, blocks, (long) indexedCount * BLOCK_SIZE);
+            ByteBuffer digests = ByteBuffer.allocate((blockCount - indexedCount) * DIGEST_SIZE);
+            for (int block = indexedCount; block < blockCount; ++block) {
+                ByteBuffer digest = digest(blocks.array(), (block - indexedCount) * BLOCK_SIZE);
+                digests.put(digest.duplicate());
+                blockIndices.putIfAbsent(digest, block);
+            }
+            digests.flip();
+            writeFully(index, digests, (long) indexedCount * DIGEST_SIZE);
+            index.force(false);
+        }
+        packBlockCount = blockCount;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    /**
+     * Returns the names of all snapshots, sorted.
+     */
+    public List<String> snapshots() {
+        List<String> names = new ArrayList<>();
+        String[] files = directory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(MANIFEST_SUFFIX)) {
+                    names.add(file.substring(0, file.length() - MANIFEST_SUFFIX.length()));
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Stores savFile under name, replacing any snapshot with that name.
+     * Names may contain letters, digits, '-', '_' and '.'.
+     *
+     * @return the number of blocks that were not already in the store
+     */
+    public int snapshot(LSDSavFile savFile, String name) throws IOException {
+        if (!name.matches("[A-Za-z0-9._-]+")) {
+            throw new IllegalArgumentException("Bad snapshot name: " + name);
+        }
+        byte[] image = savFile.fileImage();
+        int[] manifest = new int[image.length / BLOCK_SIZE];
+        int newBlocks = 0;
+        try (FileChannel pack = openPack();
+             FileChannel index = openIndex()) {
+            FileLock lock = pack.lock();
+            try {
+                update(pack, index);
+                ByteBuffer blocks = ByteBuffer.allocate(image.length);
+                ByteBuffer digests = ByteBuffer.allocate(manifest.length * DIGEST_SIZE);
+                // Not added to blockIndices until written.
+                Map<ByteBuffer, Integer> addedIndices = new HashMap<>();
+                for (int block = 0; block < manifest.length; ++block) {
+                    ByteBuffer digest = digest(image, block * BLOCK_SIZE);
+                    Integer blockIndex = blockIndices.get(digest);
+                    if (blockIndex == null) {
+                        blockIndex = addedIndices.get(digest);
+                    }
+                    if (blockIndex == null) {
+                        blocks.put(image, block * BLOCK_SIZE, BLOCK_SIZE);
+                        digests.put(digest.duplicate());
+                        blockIndex = packBlockCount + newBlocks++;
+                        addedIndices.put(digest, blockIndex);
+                    }
+                    manifest[block] = blockIndex;
+                }
+                if (newBlocks > 0) {
+                    // The pack first, so that the index never lists missing blocks.
+                    blocks.flip();
+                    writeFully(pack, blocks, (long) packBlockCount * BLOCK_SIZE);
+                    pack.force(false);
+                    digests.flip();
+                    writeFully(index, digests, (long) packBlockCount * DIGEST_SIZE);
+                    index.force(false);
+                    blockIndices.putAll(addedIndices);
+                    packBlockCount += newBlocks;
+                }
+                writeManifest(name, manifest);
+            } finally {
+                lock.release();
+            }
+        }
+        return newBlocks;
+    }
+
+    public LSDSavFile restore(String name) throws IOException {
+        int[] manifest = readManifest(name);
+        LSDSavFile savFile = new LSDSavFile();
+        if (manifest.length * BLOCK_SIZE != savFile.workRam.length) {
+            throw new IOException(name + ": Bad snapshot size!");
+        }
+        try (FileChannel pack = FileChannel.open(new File(directory, PACK_FILE).toPath(), StandardOpenOption.READ)) {
+            int block = 0;
+            while (block < manifest.length) {
+                // Blocks stored back to back in the pack are read together.
+                int runLength = 1;
+                while (block + runLength < manifest.length
+                        && manifest[block + runLength] == manifest[block] + runLength) {
+                    ++runLength;
+                }
+                ByteBuffer data = ByteBuffer.wrap(savFile.workRam, block * BLOCK_SIZE, runLength * BLOCK_SIZE);
+                long position = (long) manifest[block] * BLOCK_SIZE;
+                while (data.hasRemaining()) {
+                    int read = pack.read(data, position + data.position() - block * BLOCK_SIZE);
+                    if (read == -1) {
+                        throw new EOFException(name + ": Snapshot refers to missing block!");
+                    }
+                }
+                block += runLength;
+            }
+        }
+        savFile.workRamReplaced();
+        return savFile;
+    }
+
+    /**
+     * Returns the song slots whose name, version or song blocks differ between two snapshots.
+     */
+    public List<Integer> changedSongs(String from, String to) throws IOException {
+        int[] fromManifest = readManifest(from);
+        int[] toManifest = readManifest(to);
+        List<Integer> changed = new ArrayList<>();
+        if (Arrays.equals(fromManifest, toManifest)) {
+            return changed;
+        }
+        LSDSavFile fromSav = restore(from);
+        LSDSavFile toSav = restore(to);
+        for (int song = 0; song < fromSav.songCount; ++song) {
+            if (!Arrays.equals(songKey(fromSav, fromManifest, song), songKey(toSav, toManifest, song))) {
+                changed.add(song);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns name, version and the pack indices of the song blocks in chain order.
+     * Since equal blocks share pack indices, equal keys mean equal songs.
+     */
+    private static int[] songKey(LSDSavFile savFile, int[] manifest, int song) {
+        int[] chain = savFile.songBlockChain(song);
+        int[] key = new int[savFile.fileNameLength + 1 + chain.length];
+        int i = 0;
+        for (int c = 0; c < savFile.fileNameLength; ++c) {
+            key[i++] = savFile.workRam[savFile.fileNameStartPtr + song * savFile.fileNameLength + c];
+        }
+        key[i++] = savFile.workRam[savFile.fileVersionStartPtr + song];
+        for (int block : chain) {
+            key[i++] = manifest[(savFile.blockStartPtr + block * savFile.blockSize) / BLOCK_SIZE];
+        }
+        return key;
+    }
+
+    /**
+     * Returns the number of unique blocks stored.
+     */
+    public int blockCount() {
+        return packBlockCount;
+    }
+
+    private File manifestFile(String name) {
+        return new File(directory, name + MANIFEST_SUFFIX);
+    }
+
+    private void writeManifest(String name, int[] manifest) throws IOException {
+        Path target = manifestFile(name).toPath();
+        Path temp = target.resolveSibling(TEMP_PREFIX + name + MANIFEST_SUFFIX);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile())))) {
+                out.writeInt(MANIFEST_MAGIC);
+                out.writeInt(manifest.length);
+                for (int index : manifest) {
+                    out.writeInt(index);
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private int[] readManifest(String name) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile(name))))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException(name + ": Not a snapshot!");
+            }
+            int[] manifest = new int[in.readInt()];
+            // Other stores may have added blocks since this one was updated.
+            long blockCount = Math.max(packBlockCount, new File(directory, PACK_FILE).length() / BLOCK_SIZE);
+            for (int block = 0; block < manifest.length; ++block) {
+                manifest[block] = in.readInt();
+                if (manifest[block] < 0 || manifest[block] >= blockCount) {
+                    throw new IOException(name + ": Snapshot refers to missing block!");
+                }
+            }
+            return manifest;
+        }
+    }
+
+    private static ByteBuffer digest(byte[] data, int offset) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            messageDigest.update(data, offset, BLOCK_SIZE);
+            return ByteBuffer.wrap(messageDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Checks a .sav for corrupted songs and inconsistencies between FAT, block switches
+ * and song headers.
+ * <p>
+ * The FAT and global header fields are checked first, then the 32 song slots are
+ * checked in parallel. Each slot only reads work RAM, so any number of .sav files
+ * can be verified concurrently as long as they are not modified meanwhile.
+ */
+public class SavVerifier {
+    public enum Kind {
+        /** Song does not decode to exactly 0x8000 bytes. */
+        DECODE_ERROR(true),
+        /** Block ends without block switch or end of song. */
+        MISSING_BLOCK_SWITCH(true),
+        /** Block switch points outside the block area. */
+        BAD_BLOCK_SWITCH(true),
+        /** Block switch points to a block the FAT marks as free. */
+        FREE_BLOCK_IN_CHAIN(true),
+        /** Block switch points to a block the FAT assigns to another song. */
+        CROSS_LINKED_BLOCK(true),
+        /** Block switch points back to a block of the chain. */
+        CHAIN_LOOP(true),
+        /** FAT assigns a block to the song, but the song's block switches never reach it. */
+        UNREACHABLE_BLOCK(false),
+        /** FAT entry is neither a song slot nor the free marker. */
+        BAD_FAT_VALUE(false),
+        /** Active slot refers to an empty or nonexistent slot. */
+        BAD_ACTIVE_SLOT(false),
+        /** Empty slot still has a name or version. */
+        NAME_WITHOUT_SONG(false),
+        /** Slot holds a song but has no name. */
+        SONG_WITHOUT_NAME(false);
+
+        private final boolean error;
+
+        Kind(boolean error) {
+            this.error = error;
+        }
+
+        /**
+         * Returns true if LSDj cannot load the song, false if the problem only wastes
+         * space or confuses the song list.
+         */
+        public boolean isError() {
+            return error;
+        }
+    }
+
+    public static class Finding {
+        private final Kind kind;
+        private final int slot;
+        private final int block;
+        private final String message;
+
+        Finding(Kind kind, int slot, int block, String message) {
+            this.kind = kind;
+            this.slot = slot;
+            this.block = block;
+            this.message = message;
+        }
+
+        public Kind kind() {
+            return kind;
+        }
+
+        /**
+         * Returns the song slot, or -1 for findings about the whole .sav.
+         */
+        public int slot() {
+            return slot;
+        }
+
+        /**
+         * Returns the block the finding is about, or -1.
+         */
+        public int block() {
+            return block;
+        }
+
+        public String message() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return (slot == -1 ? "" : String.format("%2d. ", slot + 1))
+                    + (kind.isError() ? "Error: " : "Warning: ") + message;
+        }
+    }
+
+    private static final int FREE = 0xff;
+
+    private final LSDSavFile savFile;
+    private final int blockCount;
+    // FAT value of each block.
+    private final int[] owners;
+
+    private SavVerifier(LSDSavFile savFile) {
+        this.savFile = savFile;
+        blockCount = savFile.totalBlockCount();
+        owners = new int[blockCount];
+        for (int block = 0; block < blockCount; ++block) {
+            owners[block] = savFile.workRam[savFile.blockAllocTableStartPtr + block] & 0xff;
+        }
+    }
+
+    /**
+     * Returns all findings, ordered by slot with the findings about the whole .sav first.
+     */
+    public static List<Finding> verify(LSDSavFile savFile) {
+        SavVerifier verifier = new SavVerifier(savFile);
+        List<Finding> findings = verifier.verifyGlobals();
+        findings.addAll(IntStream.range(0, savFile.songCount)
+                .parallel()
+                .mapToObj(verifier::verifySlot)
+                .flatMap(List::stream)
+                .collect(Collectors.toList()));
+        return findings;
+    }
+
+    /**
+     * Returns true if any of the findings is an error.
+     */
+    public static boolean hasErrors(List<Finding> findings) {
+        for (Finding finding : findings) {
+            if (finding.kind().isError()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSong(int owner) {
+        return owner < savFile.songCount;
+    }
+
+    private List<Finding> verifyGlobals() {
+        List<Finding> findings = new ArrayList<>();
+        for (int block = 0; block < blockCount; ++block) {
+            if (!isSong(owners[block]) && owners[block] != FREE) {
+                findings.add(new Finding(Kind.BAD_FAT_VALUE, -1, block,
+                        String.format("FAT entry of block %d is %02X", block, owners[block])));
+            }
+        }
+        int activeSlot = savFile.workRam[savFile.activeFileSlot] & 0xff;
+        if (activeSlot != FREE && (!isSong(activeSlot) || !ownsBlocks(activeSlot))) {
+            findings.add(new Finding(Kind.BAD_ACTIVE_SLOT, -1, -1,
+                    String.format("Active slot %02X holds no song", activeSlot)));
+        }
+        return findings;
+    }
+
+    private boolean ownsBlocks(int slot) {
+        for (int owner : owners) {
+            if (owner == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Finding> verifySlot(int slot) {
+        List<Finding> findings = new ArrayList<>();
+        byte[] workRam = savFile.workRam;
+        int firstBlock = -1;
+        for (int block = 0; block < blockCount && firstBlock == -1; ++block) {
+            if (owners[block] == slot) {
+                firstBlock = block;
+            }
+        }
+        boolean hasName = workRam[savFile.fileNameStartPtr + slot * savFile.fileNameLength] != 0;
+        if (firstBlock == -1) {
+            if (hasName || workRam[savFile.fileVersionStartPtr + slot] != 0) {
+                findings.add(new Finding(Kind.NAME_WITHOUT_SONG, slot, -1,
+                        "Empty slot has name " + savFile.getFileName(slot)));
+            }
+            return findings;
+        }
+        if (!hasName) {
+            findings.add(new Finding(Kind.SONG_WITHOUT_NAME, slot, -1, "Song has no name"));
+        }
+
+        if (verifyChain(slot, firstBlock, findings)) {
+            int status = new SongDecoder().validate(workRam, savFile.blockStartPtr + firstBlock * savFile.blockSize);
+            if (status != SongDecoder.OK) {
+                findings.add(new Finding(Kind.DECODE_ERROR, slot, -1, decodeErrorMessage(status)));
+            }
+        }
+        return findings;
+    }
+
+    /**
+     * Follows the block switches from firstBlock.
+     *
+     * @return true if the chain reaches the end of the song through blocks of the slot
+     */
+    private boolean verifyChain(int slot, int firstBlock, List<Finding> findings) {
+        boolean[] visited = new boolean[blockCount];
+        int block = firstBlock;
+        while (true) {
+            visited[block] = true;
+            int nextBlockIdPtr = LSDSavFile.findNextBlockIdPtr(savFile.workRam,
+                    savFile.blockStartPtr + block * savFile.blockSize);
+            if (nextBlockIdPtr == LSDSavFile.END_OF_SONG) {
+                break;
+            }
+            if (nextBlockIdPtr == LSDSavFile.MISSING_BLOCK_SWITCH) {
+                findings.add(new Finding(Kind.MISSING_BLOCK_SWITCH, slot, block,
+                        "Block " + block + " ends without block switch"));
+                return false;
+            }
+            int next = (savFile.workRam[nextBlockIdPtr] & 0xff) - 1;
+            if (next < 0 || next >= blockCount) {
+                findings.add(new Finding(Kind.BAD_BLOCK_SWITCH, slot, block,
+                        String.format("Block %d switches to nonexistent block %d", block, next)));
+                return false;
+            }
+            if (visited[next]) {
+                findings.add(new Finding(Kind.CHAIN_LOOP, slot, block,
+                        String.format("Block %d switches back to block %d", block, next)));
+                return false;
+            }
+            if (owners[next] != slot) {
+                findings.add(isSong(owners[next])
+                        ? new Finding(Kind.CROSS_LINKED_BLOCK, slot, next,
+                                String.format("Block %d switches to block %d of slot %d", block, next, owners[next] + 1))
+                        : new Finding(Kind.FREE_BLOCK_IN_CHAIN, slot, next,
+                                String.format("Block %d switches to free block %d", block, next)));
+                return false;
+            }
+            block = next;
+        }
+        for (int fatBlock = 0; fatBlock < blockCount; ++fatBlock) {
+            if (owners[fatBlock] == slot && !visited[fatBlock]) {
+                findings.add(new Finding(Kind.UNREACHABLE_BLOCK, slot, fatBlock,
+                        "Block " + fatBlock + " is not part of the song"));
+            }
+        }
+        return true;
+    }
+
+    private static String decodeErrorMessage(int status) {
+        switch (status) {
+            case SongDecoder.ERROR_TOO_LONG:
+                return "Song decodes to more than 0x8000 bytes";
+            case SongDecoder.ERROR_TOO_SHORT:
+                return "Song ends before 0x8000 bytes";
+            case SongDecoder.ERROR_BAD_BLOCK_SWITCH:
+                return "Song has a bad block switch";
+            default:
+                return "Song data runs outside of work RAM";
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package Document;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decoder for LSDj's compressed song block format.
+ * <p>
+ * Songs are stored in 0x200 byte blocks, using the following codes:
+ * <ul>
+ * <li>C0 C0: literal C0</li>
+ * <li>C0 xx nn: byte xx repeated nn times</li>
+ * <li>E0 E0: literal E0</li>
+ * <li>E0 F0 nn: default wave repeated nn times</li>
+ * <li>E0 F1 nn: default instrument repeated nn times</li>
+ * <li>E0 FF: end of song</li>
+ * <li>E0 xx: continue in block xx</li>
+ * </ul>
+ * A decoder instance holds no buffers and can be reused for any number of songs,
+ * but is not thread safe. Errors are reported as status codes rather than exceptions.
+ */
+public class SongDecoder {
+    public static final int SONG_SIZE = 0x8000;
+
+    public static final int OK = 0;
+    /** Source pointer or block switch ran outside of work RAM. */
+    public static final int ERROR_SOURCE_OUT_OF_BOUNDS = 1;
+    /** Song decoded to more than SONG_SIZE bytes. */
+    public static final int ERROR_TOO_LONG = 2;
+    /** End of song was reached before SONG_SIZE bytes were decoded. */
+    public static final int ERROR_TOO_SHORT = 3;
+    /** Block switch to a block that cannot hold song data, or more switches than there are blocks. */
+    public static final int ERROR_BAD_BLOCK_SWITCH = 4;
+    /** Caller-supplied destination has less than SONG_SIZE bytes of room. */
+    public static final int ERROR_DESTINATION_TOO_SMALL = 5;
+
+    static final int BLOCK_SIZE = 0x200;
+    // Block switch value n continues at 0x8000 + n * BLOCK_SIZE, i.e. value 1 is the first block.
+    static final int BLOCK_BASE_PTR = 0x8000;
+    static final int MAX_BLOCK_ID = 0xbf;
+
+    static final byte[] DEFAULT_WAVE = {
+            (byte) 0x8e, (byte) 0xcd, (byte) 0xcc, (byte) 0xbb,
+            (byte) 0xaa, (byte) 0xa9, (byte) 0x99, (byte) 0x88,
+            (byte) 0x87, (byte) 0x76, (byte) 0x66, (byte) 0x55,
+            (byte) 0x54, (byte) 0x43, (byte) 0x32, (byte) 0x31
+    };
+
+    static final byte[] DEFAULT_INSTRUMENT = {
+            (byte) 0xa8, 0, 0, (byte) 0xff,
+            0, 0, 3, 0,
+            0, (byte) 0xd0, 0, 0,
+            0, (byte) 0xf3, 0, 0
+    };
+
+    /**
+     * Receives decoded bytes in order.
+     */
+    public interface Visitor {
+        /**
+         * @param songPos offset of the byte in the decoded song
+         * @param value   decoded byte
+         * @param srcPtr  work RAM address of the byte if it is stored as a plain literal,
+         *                or -1 if it was expanded from a run, escape or default code
+         */
+        void visit(int songPos, byte value, int srcPtr);
+    }
+
+    private byte[] dst;
+    private int dstOffset;
+    private Visitor visitor;
+
+    private int status;
+    private int decodedLength;
+
+    public int status() {
+        return status;
+    }
+
+    /**
+     * Returns the number of decoded bytes in the last run, also on failure.
+     */
+    public int decodedLength() {
+        return decodedLength;
+    }
+
+    /**
+     * Decodes the song starting at srcPtr into dst[dstOffset..dstOffset + SONG_SIZE).
+     *
+     * @return status code, OK on success
+     */
+    public int decode(byte[] src, int srcPtr, byte[] dst, int dstOffset) {
+        if (dstOffset < 0 || dst.length - dstOffset < SONG_SIZE) {
+            decodedLength = 0;
+            return status = ERROR_DESTINATION_TOO_SMALL;
+        }
+        return run(src, srcPtr, dst, dstOffset, null);
+    }
+
+    /**
+     * Decodes the song starting at srcPtr into dst, starting at its position.
+     * On success, the position is advanced by SONG_SIZE.
+     *
+     * @return status code, OK on success
+     */
+    public int decode(byte[] src, int srcPtr, ByteBuffer dst) {
+        if (dst.remaining() < SONG_SIZE) {
+            decodedLength = 0;
+            return status = ERROR_DESTINATION_TOO_SMALL;
+        }
+        int result;
+        if (dst.hasArray() && !dst.isReadOnly()) {
+            result = run(src, srcPtr, dst.array(), dst.arrayOffset() + dst.position(), null);
+        } else {
+            final int base = dst.position();
+            result = run(src, srcPtr, null, 0, (songPos, value, ptr) -> dst.put(base + songPos, value));
+        }
+        if (result == OK) {
+            dst.position(dst.position() + SONG_SIZE);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the song starting at srcPtr, passing each byte to visitor without storing the song.
+     *
+     * @return status code, OK on success
+     */
+    public int visit(byte[] src, int srcPtr, Visitor visitor) {
+        return run(src, srcPtr, null, 0, visitor);
+    }
+
+    /**
+     * Decodes the song starting at srcPtr without storing it.
+     *
+     * @return status code, OK on success
+     */
+    public int validate(byte[] src, int srcPtr) {
+        return run(src, srcPtr, null, 0, null);
+    }
+
+    private int run(byte[] src, int srcPtr, byte[] dst, int dstOffset, Visitor visitor) {
+        this.dst = dst;
+        this.dstOffset = dstOffset;
+        this.visitor = visitor;
+        try {
+            status = decodeLoop(src, srcPtr);
+            return status;
+        } finally {
+            this.dst = null;
+            this.visitor = null;
+        }
+    }
+
+    private int decodeLoop(byte[] src, int srcPtr) {
+        int dstPos = 0;
+        int blockSwitches = 0;
+        final int srcEnd = src.length;
+
+        while (true) {
+            if (srcPtr < 0 || srcPtr >= srcEnd) {
+                decodedLength = dstPos;
+                return ERROR_SOURCE_OUT_OF_BOUNDS;
+            }
+            byte b = src[srcPtr];
+            if (b != (byte) 0xc0 && b != (byte) 0xe0) {
+                if (dstPos == SONG_SIZE) {
+                    decodedLength = dstPos;
+                    return ERROR_TOO_LONG;
+                }
+                emit(dstPos++, b, srcPtr++);
+                continue;
+            }
+            if (srcPtr + 1 >= srcEnd) {
+                decodedLength = dstPos;
+                return ERROR_SOURCE_OUT_OF_BOUNDS;
+            }
+            byte arg = src[srcPtr + 1];
+
+            if (b == (byte) 0xc0) {
+                if (arg == (byte) 0xc0) {
+                    if (dstPos == SONG_SIZE) {
+                        decodedLength = dstPos;
+                        return ERROR_TOO_LONG;
+                    }
+                    emit(dstPos++, (byte) 0xc0, -1);
+                    srcPtr += 2;
+                } else {
+                    // rle
+                    if (srcPtr + 2 >= srcEnd) {
+                        decodedLength = dstPos;
+                        return ERROR_SOURCE_OUT_OF_BOUNDS;
+                    }
+                    int count = src[srcPtr + 2] & 0xff;
+                    if (dstPos + count > SONG_SIZE) {
+                        decodedLength = dstPos;
+                        return ERROR_TOO_LONG;
+                    }
+                    emitRun(dstPos, arg, count);
+                    dstPos += count;
+                    srcPtr += 3;
+                }
+                continue;
+            }
+
+            switch (arg) {
+                case (byte) 0xe0:
+                    if (dstPos == SONG_SIZE) {
+                        decodedLength = dstPos;
+                        return ERROR_TOO_LONG;
+                    }
+                    emit(dstPos++, (byte) 0xe0, -1);
+                    srcPtr += 2;
+                    break;
+
+                case (byte) 0xff: // done!
+                    decodedLength = dstPos;
+                    return dstPos == SONG_SIZE ? OK : ERROR_TOO_SHORT;
+
+                case (byte) 0xf0: // wave
+                case (byte) 0xf1: // instr
+                    if (srcPtr + 2 >= srcEnd) {
+                        decodedLength = dstPos;
+                        return ERROR_SOURCE_OUT_OF_BOUNDS;
+                    }
+                    int count = src[srcPtr + 2] & 0xff;
+                    if (dstPos + count * 16 > SONG_SIZE) {
+                        decodedLength = dstPos;
+                        return ERROR_TOO_LONG;
+                    }
+                    byte[] pattern = arg == (byte) 0xf0 ? DEFAULT_WAVE : DEFAULT_INSTRUMENT;
+                    for (int i = 0; i < count; ++i) {
+                        emitPattern(dstPos, pattern);
+                        dstPos += 16;
+                    }
+                    srcPtr += 3;
+                    break;
+
+                default: // block switch
+                    int block = arg & 0xff;
+                    if (block == 0 || block > MAX_BLOCK_ID || ++blockSwitches > MAX_BLOCK_ID) {
+                        decodedLength = dstPos;
+                        return ERROR_BAD_BLOCK_SWITCH;
+                    }
+                    srcPtr = BLOCK_BASE_PTR + BLOCK_SIZE * block;
+                    break;
+            }
+        }
+    }
+
+    private void emit(int songPos, byte value, int srcPtr) {
+        if (dst != null) {
+            dst[dstOffset + songPos] = value;
+        } else if (visitor != null) {
+            visitor.visit(songPos, value, srcPtr);
+        }
+    }
+
+    private void emitRun(int songPos, byte value, int count) {
+        if (dst != null) {
+            int start = dstOffset + songPos;
+            Arrays.fill(dst, start, start + count, value);
+        } else if (visitor != null) {
+            for (int i = 0; i < count; ++i) {
+                visitor.visit(songPos + i, value, -1);
+            }
+        }
+    }
+
+    private void emitPattern(int songPos, byte[] pattern) {
+        if (dst != null) {
+            System.arraycopy(pattern, 0, dst, dstOffset + songPos, pattern.length);
+        } else if (visitor != null) {
+            for (int i = 0; i < pattern.length; ++i) {
+                visitor.visit(songPos + i, pattern[i], -1);
+            }
+        }
+    }
+}
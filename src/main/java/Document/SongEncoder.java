@@ -0,0 +1,143 @@
+package Document;
+
+import java.util.Arrays;
+
+/**
+ * Encoder for LSDj's compressed song block format, the inverse of SongDecoder.
+ * <p>
+ * Packs a 32 kB decoded song into 0x200 byte blocks using run-length, default wave (E0 F0)
+ * and default instrument (E0 F1) codes. Blocks are chained with E0 xx block switches and
+ * the last block ends with E0 FF. Commands never straddle a block boundary, and the last
+ * two bytes of every block are reserved for the block switch or end marker.
+ */
+public class SongEncoder {
+    private static final int BLOCK_SIZE = SongDecoder.BLOCK_SIZE;
+    private static final int MAX_COUNT = 0xff;
+
+    // Output of encodedBlockCount(), allocated on first use. Makes instances unsafe to share between threads.
+    private byte[] scratch;
+
+    /**
+     * Encodes song[songOffset..songOffset + 0x8000) into consecutive blocks of dst, starting
+     * at dstOffset. Block i of the output is assumed to end up in FAT block firstBlockId + i,
+     * which determines the block switch values. Unused bytes of the last block are zeroed.
+     *
+     * @return number of blocks written, or -1 if dst does not have room for the song
+     */
+    public int encode(byte[] song, int songOffset, byte[] dst, int dstOffset, int firstBlockId) {
+        final int songEnd = songOffset + SongDecoder.SONG_SIZE;
+        final int maxBlocks = (dst.length - dstOffset) / BLOCK_SIZE;
+        if (maxBlocks < 1) {
+            return -1;
+        }
+
+        int blocks = 1;
+        int blockEnd = dstOffset + BLOCK_SIZE - 2; // Reserve room for block switch or end marker.
+        int dstPtr = dstOffset;
+        int srcPtr = songOffset;
+
+        while (srcPtr < songEnd) {
+            byte b = song[srcPtr];
+            int commandLength;
+            int consumed;
+            byte code;
+            int count;
+
+            if (b == SongDecoder.DEFAULT_WAVE[0]
+                    && (count = patternCount(song, srcPtr, songEnd, SongDecoder.DEFAULT_WAVE)) > 0) {
+                code = (byte) 0xf0;
+                commandLength = 3;
+                consumed = count * 16;
+            } else if (b == SongDecoder.DEFAULT_INSTRUMENT[0]
+                    && (count = patternCount(song, srcPtr, songEnd, SongDecoder.DEFAULT_INSTRUMENT)) > 0) {
+                code = (byte) 0xf1;
+                commandLength = 3;
+                consumed = count * 16;
+            } else {
+                code = 0;
+                count = runLength(song, srcPtr, songEnd);
+                if (b != (byte) 0xc0 && (b == (byte) 0xe0 ? count >= 2 : count >= 4)) {
+                    commandLength = 3;
+                    consumed = count;
+                } else {
+                    // C0 and E0 are escaped by doubling.
+                    commandLength = b == (byte) 0xc0 || b == (byte) 0xe0 ? 2 : 1;
+                    consumed = 1;
+                }
+            }
+
+            if (dstPtr + commandLength > blockEnd) {
+                if (blocks == maxBlocks) {
+                    return -1;
+                }
+                dst[dstPtr++] = (byte) 0xe0;
+                // Block switch values are FAT block + 1.
+                dst[dstPtr++] = (byte) (firstBlockId + blocks + 1);
+                Arrays.fill(dst, dstPtr, blockEnd + 2, (byte) 0);
+                dstPtr = dstOffset + blocks * BLOCK_SIZE;
+                blockEnd = dstPtr + BLOCK_SIZE - 2;
+                ++blocks;
+            }
+
+            if (commandLength == 3) {
+                if (code == 0) {
+                    dst[dstPtr++] = (byte) 0xc0;
+                    dst[dstPtr++] = b;
+                } else {
+                    dst[dstPtr++] = (byte) 0xe0;
+                    dst[dstPtr++] = code;
+                }
+                dst[dstPtr++] = (byte) count;
+            } else if (commandLength == 2) {
+                dst[dstPtr++] = b;
+                dst[dstPtr++] = b;
+            } else {
+                dst[dstPtr++] = b;
+            }
+            srcPtr += consumed;
+        }
+
+        dst[dstPtr++] = (byte) 0xe0;
+        dst[dstPtr++] = (byte) 0xff;
+        Arrays.fill(dst, dstPtr, blockEnd + 2, (byte) 0);
+        return blocks;
+    }
+
+    /**
+     * Returns the number of blocks needed to encode song[songOffset..songOffset + 0x8000).
+     */
+    public int encodedBlockCount(byte[] song, int songOffset) {
+        if (scratch == null) {
+            scratch = new byte[SongDecoder.MAX_BLOCK_ID * BLOCK_SIZE];
+        }
+        return encode(song, songOffset, scratch, 0, 0);
+    }
+
+    private static int runLength(byte[] song, int ptr, int end) {
+        byte b = song[ptr];
+        int limit = Math.min(end, ptr + MAX_COUNT);
+        int runEnd = ptr + 1;
+        while (runEnd < limit && song[runEnd] == b) {
+            ++runEnd;
+        }
+        return runEnd - ptr;
+    }
+
+    private static int patternCount(byte[] song, int ptr, int end, byte[] pattern) {
+        int count = 0;
+        while (count < MAX_COUNT && ptr + pattern.length <= end && matches(song, ptr, pattern)) {
+            ptr += pattern.length;
+            ++count;
+        }
+        return count;
+    }
+
+    private static boolean matches(byte[] song, int ptr, byte[] pattern) {
+        for (int i = 0; i < pattern.length; ++i) {
+            if (song[ptr + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+package Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Read-only view of an .lsdsng/.lsdprj file.
+ * <p>
+ * File layout: 8 bytes song name, 1 byte version, the song's 0x200 byte blocks in
+ * chain order and, for .lsdprj, any number of 0x4000 byte kits.
+ */
+public class SongFile {
+    static final int HEADER_SIZE = 9;
+    static final int KIT_SIZE = 0x4000;
+    // Header, all blocks of a .sav and a kit for every kit bank.
+    static final int MAX_SIZE = HEADER_SIZE + SongDecoder.MAX_BLOCK_ID * SongDecoder.BLOCK_SIZE + 0x40 * KIT_SIZE;
+
+    private final File file;
+    private final String name;
+    private final byte[] data;
+    private final int blockCount;
+    private final int kitCount;
+
+    private SongFile(File file, String name, byte[] data) throws IOException {
+        this.file = file;
+        this.name = name;
+        this.data = data;
+
+        int blockCount = 0;
+        while (true) {
+            int blockPtr = HEADER_SIZE + blockCount * SongDecoder.BLOCK_SIZE;
+            if (blockPtr + SongDecoder.BLOCK_SIZE > data.length) {
+                throw new IOException(name + ": Song corrupted!");
+            }
+            ++blockCount;
+            int nextBlockIdPtr = LSDSavFile.findNextBlockIdPtr(data, blockPtr);
+            if (nextBlockIdPtr == LSDSavFile.END_OF_SONG) {
+                break;
+            }
+            if (nextBlockIdPtr == LSDSavFile.MISSING_BLOCK_SWITCH || blockCount > SongDecoder.MAX_BLOCK_ID) {
+                throw new IOException(name + ": Song corrupted!");
+            }
+        }
+        this.blockCount = blockCount;
+        kitCount = (data.length - kitsOffset()) / KIT_SIZE;
+    }
+
+    public static SongFile read(File file) throws IOException {
+        return new SongFile(file, file.getName(), Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Reads a song from channel until end of stream, e.g. from a zip entry or stdin.
+     *
+     * @param name used in error messages
+     */
+    public static SongFile read(ReadableByteChannel channel, String name) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 0x20 * SongDecoder.BLOCK_SIZE);
+        while (channel.read(buffer) != -1) {
+            if (!buffer.hasRemaining()) {
+                // Room for one byte more than allowed tells a file of exactly MAX_SIZE from a larger one.
+                if (buffer.capacity() > MAX_SIZE) {
+                    throw new IOException(name + ": File too large!");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_SIZE + 1));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+        return new SongFile(null, name, Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    /**
+     * Returns the file the song was read from, or null if it was read from a channel.
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Returns the file name or the name given when reading from a channel.
+     */
+    public String sourceName() {
+        return name;
+    }
+
+    public String name() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8 && data[i] != 0; ++i) {
+            sb.append((char) LSDSavFile.convertLsdCharToAscii(data[i]));
+        }
+        return sb.toString();
+    }
+
+    public int version() {
+        return data[8] & 0xff;
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    public int kitCount() {
+        return kitCount;
+    }
+
+    /**
+     * Returns offset of the given kit in data().
+     */
+    public int kitOffset(int kit) {
+        return kitsOffset() + kit * KIT_SIZE;
+    }
+
+    /**
+     * Returns the raw file contents. Must not be modified.
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    private int kitsOffset() {
+        return HEADER_SIZE + blockCount * SongDecoder.BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,112 @@
+/******************************************************************************
+ *
+ * libresample4j
+ * Copyright (c) 2009 Laszlo Systems, Inc. All Rights Reserved.
+ *
+ * libresample4j is a Java port of Dominic Mazzoni's libresample 0.1.3,
+ * which is in turn based on Julius Smith's Resample 1.7 library.
+ *      http://www-ccrma.stanford.edu/~jos/resample/
+ *
+ * License: LGPL -- see the file LICENSE.txt for more information
+ *
+ *****************************************************************************/
+package com.laszlosystems.libresample4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable right wing of a Kaiser-windowed low-pass filter, with the deltas
+ * between neighbouring coefficients for linear interpolation.
+ * <p>
+ * Computing a table takes far longer than resampling a short sample, so tables are
+ * cached per quality, roll-off and Beta and shared by all resampling sessions.
+ * The arrays must not be modified.
+ */
+final class LpFilterTable {
+    // Tables for a few recently used roll-off and Beta settings.
+    private static final int CACHE_SIZE = 8;
+
+    private static final Map<Key, LpFilterTable> cache = new LinkedHashMap<Key, LpFilterTable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, LpFilterTable> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final class Key {
+        final boolean highQuality;
+        final double rollOff;
+        final double beta;
+
+        Key(boolean highQuality, double rollOff, double beta) {
+            this.highQuality = highQuality;
+            this.rollOff = rollOff;
+            this.beta = beta;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return highQuality == key.highQuality && rollOff == key.rollOff && beta == key.beta;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(highQuality, rollOff, beta);
+        }
+    }
+
+    final int Nmult;
+    final int Nwing; // # of filter coeffs in right wing
+    final float[] Imp;
+    final float[] ImpD;
+
+    private LpFilterTable(boolean highQuality, double rollOff, double beta) {
+        this.Nmult = highQuality ? 35 : 11;
+        this.Nwing = Resampler.Npc * (this.Nmult - 1) / 2;
+
+        double[] Imp64 = new double[this.Nwing];
+
+        FilterKit.lrsLpFilter(Imp64, this.Nwing, 0.5 * rollOff, beta, Resampler.Npc);
+        this.Imp = new float[this.Nwing];
+        this.ImpD = new float[this.Nwing];
+
+        for (int i = 0; i < this.Nwing; i++) {
+            this.Imp[i] = (float) Imp64[i];
+        }
+
+        // Storing deltas in ImpD makes linear interpolation
+        // of the filter coefficients faster
+        for (int i = 0; i < this.Nwing - 1; i++) {
+            this.ImpD[i] = this.Imp[i + 1] - this.Imp[i];
+        }
+
+        // Last coeff. not interpolated
+        this.ImpD[this.Nwing - 1] = -this.Imp[this.Nwing - 1];
+    }
+
+    /**
+     * Returns the shared table for the given settings, computing it on first use.
+     */
+    static LpFilterTable get(boolean highQuality, double rollOff, double beta) {
+        Key key = new Key(highQuality, rollOff, beta);
+        synchronized (cache) {
+            LpFilterTable table = cache.get(key);
+            if (table != null) {
+                return table;
+            }
+        }
+        // Computed outside the lock. Concurrent misses may compute the same table twice,
+        // which is harmless since tables are equal.
+        LpFilterTable table = new LpFilterTable(highQuality, rollOff, beta);
+        synchronized (cache) {
+            LpFilterTable existing = cache.putIfAbsent(key, table);
+            return existing != null ? existing : table;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/******************************************************************************
+ *
+ * libresample4j
+ * Copyright (c) 2009 Laszlo Systems, Inc. All Rights Reserved.
+ *
+ * libresample4j is a Java port of Dominic Mazzoni's libresample 0.1.3,
+ * which is in turn based on Julius Smith's Resample 1.7 library.
+ *      http://www-ccrma.stanford.edu/~jos/resample/
+ *
+ * License: LGPL -- see the file LICENSE.txt for more information
+ *
+ *****************************************************************************/
+package com.laszlosystems.libresample4j;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fixed-ratio resampler for factors that are close to a fraction L/M with a small L.
+ * <p>
+ * Output sample k lies at input time k * M / L, so only L different filter phases
+ * occur. The coefficients of each phase are precomputed from the same Kaiser-windowed
+ * low-pass filter as {@link Resampler} uses, with linear interpolation between table
+ * entries, which makes each output sample a plain dot product over float arrays.
+ * <p>
+ * Use {@link #forFactor} to get an instance, and fall back to {@link Resampler} if it
+ * returns null. Instances are immutable and can be shared between threads.
+ */
+public final class PolyphaseResampler {
+    // Largest L, i.e. number of filter phases.
+    static final int MAX_PHASES = 4096;
+    // Largest relative difference between L/M and the requested factor, about 0.02 cents.
+    static final double MAX_FACTOR_ERROR = 1e-5;
+    // Largest coefficient table, in floats.
+    static final int MAX_COEFFICIENTS = 1 << 21;
+    // Input samples resampled per step of process(SampleBuffers).
+    static final int CHUNK_SIZE = 4096;
+    // Instances for a few recently used factors and filter settings.
+    private static final int CACHE_SIZE = 4;
+
+    private static final Map<Key, PolyphaseResampler> cache = new LinkedHashMap<Key, PolyphaseResampler>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, PolyphaseResampler> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final class Key {
+        final int up;
+        final int down;
+        final double rollOff;
+        final double beta;
+
+        Key(int up, int down, double rollOff, double beta) {
+            this.up = up;
+            this.down = down;
+            this.rollOff = rollOff;
+            this.beta = beta;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return up == key.up && down == key.down && rollOff == key.rollOff && beta == key.beta;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(up, down, rollOff, beta);
+        }
+    }
+
+    private final int up; // L
+    private final int down; // M
+    // Input samples before the current one that contribute to an output sample.
+    private final int reach;
+    // Coefficients per phase, a multiple of 4.
+    private final int taps;
+    // taps coefficients for each of the up phases.
+    private final float[] coefficients;
+
+    private PolyphaseResampler(int up, int down, int reach, int taps, LpFilterTable filter) {
+        this.up = up;
+        this.down = down;
+        this.reach = reach;
+        this.taps = taps;
+        coefficients = new float[up * taps];
+
+        double factor = (double) up / down;
+        // Lowers the cutoff to the output Nyquist frequency when downsampling.
+        double cutoff = Math.min(1, factor);
+        float[] Imp = filter.Imp;
+        float[] ImpD = filter.ImpD;
+        for (int phase = 0; phase < up; ++phase) {
+            double frac = (double) phase / up;
+            for (int tap = 0; tap < taps; ++tap) {
+                // Distance from the output time to the input sample, in input samples.
+                double distance = tap - (reach - 1) - frac;
+                double Ho = Math.abs(distance) * cutoff * Resampler.Npc;
+                int index = (int) Ho;
+                float coefficient = 0;
+                if (index < filter.Nwing) {
+                    coefficient = Imp[index] + ImpD[index] * (float) (Ho - index);
+                }
+                // Accounts for increased filter gain when downsampling.
+                coefficients[phase * taps + tap] = (float) (coefficient * cutoff);
+            }
+        }
+    }
+
+    /**
+     * Returns a resampler for factor with the current {@link Resampler#RollOff} and
+     * {@link Resampler#Beta}, or null if factor has no close enough fraction with a
+     * small enough filter table.
+     *
+     * @param factor output sample rate divided by input sample rate
+     */
+    public static PolyphaseResampler forFactor(double factor) {
+        if (!(factor > 0) || Double.isInfinite(factor)) {
+            return null;
+        }
+        int[] fraction = fraction(factor);
+        if (fraction == null) {
+            return null;
+        }
+        int up = fraction[0];
+        int down = fraction[1];
+        LpFilterTable filter = LpFilterTable.get(true, Resampler.RollOff, Resampler.Beta);
+        double width = (filter.Nwing / (double) Resampler.Npc) / Math.min(1, (double) up / down);
+        int reach = (int) Math.ceil(width);
+        int taps = (2 * reach + 3) & ~3;
+        if ((long) up * taps > MAX_COEFFICIENTS) {
+            return null;
+        }
+
+        Key key = new Key(up, down, Resampler.RollOff, Resampler.Beta);
+        synchronized (cache) {
+            PolyphaseResampler resampler = cache.get(key);
+            if (resampler != null) {
+                return resampler;
+            }
+        }
+        PolyphaseResampler resampler = new PolyphaseResampler(up, down, reach, taps, filter);
+        synchronized (cache) {
+            PolyphaseResampler existing = cache.putIfAbsent(key, resampler);
+            return existing != null ? existing : resampler;
+        }
+    }
+
+    /**
+     * Returns {L, M} for the first continued fraction convergent L/M of factor that is
+     * within MAX_FACTOR_ERROR, or null if there is none with L <= MAX_PHASES.
+     */
+    static int[] fraction(double factor) {
+        long up0 = 0;
+        long down0 = 1;
+        long up1 = 1;
+        long down1 = 0;
+        double x = factor;
+        while (true) {
+            long a = (long) Math.floor(x);
+            long up = a * up1 + up0;
+            long down = a * down1 + down0;
+            if (up > MAX_PHASES || down > Integer.MAX_VALUE) {
+                return null;
+            }
+            if (up > 0 && Math.abs((double) up / down - factor) <= MAX_FACTOR_ERROR * factor) {
+                return new int[]{(int) up, (int) down};
+            }
+            double rest = x - a;
+            if (rest == 0) {
+                return null;
+            }
+            x = 1 / rest;
+            up0 = up1;
+            down0 = down1;
+            up1 = up;
+            down1 = down;
+        }
+    }
+
+    /**
+     * Returns L/M, the factor this resampler actually resamples by.
+     */
+    public double getFactor() {
+        return (double) up / down;
+    }
+
+    /**
+     * Returns the number of output samples for inputLength input samples.
+     */
+    public int getOutputLength(int inputLength) {
+        return (int) (((long) inputLength * up + down - 1) / down);
+    }
+
+    /**
+     * Resamples a whole signal, treating samples outside of it as silence.
+     *
+     * @param in       array containing input samples in the range -1.0 to 1.0
+     * @param out      array to hold {@link #getOutputLength} resampled samples
+     * @return the number of samples generated
+     */
+    public int process(float[] in, int inOffset, int inLength, float[] out, int outOffset) {
+        final FloatBuffer inputBuffer = FloatBuffer.wrap(in, inOffset, inLength);
+        final FloatBuffer outputBuffer = FloatBuffer.wrap(out, outOffset, out.length - outOffset);
+        return process(new SampleBuffers() {
+            public int getInputBufferLength() {
+                return inputBuffer.remaining();
+            }
+
+            public int getOutputBufferLength() {
+                return outputBuffer.remaining();
+            }
+
+            public void produceInput(float[] array, int offset, int length) {
+                inputBuffer.get(array, offset, length);
+            }
+
+            public void consumeOutput(float[] array, int offset, int length) {
+                outputBuffer.put(array, offset, length);
+            }
+        });
+    }
+
+    /**
+     * Resamples all input samples the buffers have, treating samples outside of them as
+     * silence. Input is read and output written in chunks of at most CHUNK_SIZE input
+     * samples, so memory use does not grow with the signal length.
+     *
+     * @return the number of samples generated, which is {@link #getOutputLength} unless
+     * the output buffer runs out of room
+     */
+    public int process(SampleBuffers buffers) {
+        int inputLeft = buffers.getInputBufferLength();
+        int outLength = getOutputLength(inputLeft);
+        int step = down / up;
+        int phaseStep = down % up;
+
+        // Window of the zero-padded input. X[0] is padded input sample Xstart.
+        float[] X = new float[CHUNK_SIZE + taps];
+        float[] Y = new float[(int) ((long) X.length * up / down) + 2];
+        int Xstart = 0;
+        int Xend = reach - 1; // Leading silence.
+        int Xp = 0; // First padded input sample of the current output sample.
+        int phase = 0;
+        int outCount = 0;
+        while (outCount < outLength) {
+            // Fills the window with input, then with trailing silence.
+            int len = Math.min(X.length - (Xend - Xstart), inputLeft);
+            buffers.produceInput(X, Xend - Xstart, len);
+            inputLeft -= len;
+            Xend += len;
+            if (inputLeft == 0) {
+                Arrays.fill(X, Xend - Xstart, X.length, 0);
+                Xend = Xstart + X.length;
+            }
+
+            int Yp = 0;
+            int YSize = Math.min(Y.length, Math.min(outLength - outCount, buffers.getOutputBufferLength()));
+            if (YSize == 0) {
+                break;
+            }
+            while (Yp < YSize && Xp + taps <= Xend) {
+                Y[Yp++] = dot(coefficients, phase * taps, X, Xp - Xstart, taps);
+                Xp += step;
+                phase += phaseStep;
+                if (phase >= up) {
+                    phase -= up;
+                    ++Xp;
+                }
+            }
+            buffers.consumeOutput(Y, 0, Yp);
+            outCount += Yp;
+
+            // Keeps the samples the next output sample needs. Xp <= Xend since taps > step.
+            System.arraycopy(X, Xp - Xstart, X, 0, Xend - Xp);
+            Xstart = Xp;
+        }
+        return outCount;
+    }
+
+    // Four independent sums let the JIT pipeline and vectorize the loop.
+    private static float dot(float[] h, int hOffset, float[] x, int xOffset, int length) {
+        float v0 = 0;
+        float v1 = 0;
+        float v2 = 0;
+        float v3 = 0;
+        for (int i = 0; i < length; i += 4) {
+            v0 += h[hOffset + i] * x[xOffset + i];
+            v1 += h[hOffset + i + 1] * x[xOffset + i + 1];
+            v2 += h[hOffset + i + 2] * x[xOffset + i + 2];
+            v3 += h[hOffset + i + 3] * x[xOffset + i + 3];
+        }
+        return (v0 + v1) + (v2 + v3);
+    }
+}
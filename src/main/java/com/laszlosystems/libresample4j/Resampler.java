@@ -29,6 +29,7 @@ public class Resampler {
     // number of values per 1/delta in impulse response
     protected static final int Npc = 4096;
 
+    // Shared by all sessions with the same filter settings, never written.
     private final float[] Imp;
     private final float[] ImpD;
     private final float LpScl;
@@ -50,12 +51,13 @@ public class Resampler {
 
     /**
      * Clone an existing resampling session. Faster than creating one from scratch.
+     * The filter table is shared, only the session state is copied.
      *
      * @param other
      */
     public Resampler(Resampler other) {
-        this.Imp = other.Imp.clone();
-        this.ImpD = other.ImpD.clone();
+        this.Imp = other.Imp;
+        this.ImpD = other.ImpD;
         this.LpScl = other.LpScl;
         this.Nmult = other.Nmult;
         this.Nwing = other.Nwing;
@@ -90,28 +92,13 @@ public class Resampler {
 
         this.minFactor = minFactor;
         this.maxFactor = maxFactor;
-        this.Nmult = highQuality ? 35 : 11;
+        // Filter tables are cached per quality, RollOff and Beta.
+        LpFilterTable filter = LpFilterTable.get(highQuality, RollOff, Beta);
+        this.Nmult = filter.Nmult;
         this.LpScl = 1.0f;
-        this.Nwing = Npc * (this.Nmult - 1) / 2; // # of filter coeffs in right wing
-
-        double[] Imp64 = new double[this.Nwing];
-
-        FilterKit.lrsLpFilter(Imp64, this.Nwing, 0.5 * RollOff, Beta, Npc);
-        this.Imp = new float[this.Nwing];
-        this.ImpD = new float[this.Nwing];
-
-        for (int i = 0; i < this.Nwing; i++) {
-            this.Imp[i] = (float) Imp64[i];
-        }
-
-        // Storing deltas in ImpD makes linear interpolation
-        // of the filter coefficients faster
-        for (int i = 0; i < this.Nwing - 1; i++) {
-            this.ImpD[i] = this.Imp[i + 1] - this.Imp[i];
-        }
-
-        // Last coeff. not interpolated
-        this.ImpD[this.Nwing - 1] = -this.Imp[this.Nwing - 1];
+        this.Nwing = filter.Nwing;
+        this.Imp = filter.Imp;
+        this.ImpD = filter.ImpD;
 
         // Calc reach of LP filter wing (plus some creeping room)
         int Xoff_min = (int) (((this.Nmult + 1) / 2.0) * Math.max(1.0, 1.0 / minFactor) + 10);
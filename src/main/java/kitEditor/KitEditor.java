@@ -1,6 +1,8 @@
 package kitEditor;
 
 import Document.Document;
+import Document.DocumentChange;
+import Document.DocumentChangeListener;
 import com.laszlosystems.libresample4j.Resampler;
 import net.miginfocom.swing.MigLayout;
 import utils.*;
@@ -14,6 +16,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Locale;
 
 public class KitEditor extends JFrame implements SamplePicker.Listener {
@@ -38,6 +41,11 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
     private static final byte KIT_VERSION_1 = 1;
 
     private byte[] romImage;
+    // ROM banks changed in romImage since it was last handed to the document.
+    private final BitSet editedBanks = new BitSet();
+    // Receives one bank at a time from the document.
+    private final byte[] documentBank = new byte[RomUtilities.BANK_SIZE];
+    private final DocumentChangeListener kitChangeListener = this::onKitBanksChanged;
 
     private final Sample[][] samples = new Sample[RomUtilities.BANK_COUNT][MAX_SAMPLES];
     
@@ -63,6 +71,11 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
     private final JCheckBoxMenuItem halfSpeed = new JCheckBoxMenuItem("Half-speed");
     private final JCheckBox dither = new JCheckBox("Dither", true);
     private final JMenuItem useGameBoyAdvancePolarity = new JCheckBoxMenuItem("Invert Polarity for GBA");
+    private final SampleProcessor sampleProcessor = new SampleProcessor();
+    // Key of reloadAllSamples() jobs. Jobs for single samples use their sample index.
+    private static final Object ALL_SAMPLES = new Object();
+    // True while results are installed on closing, which must not play or show dialogs.
+    private boolean closing;
 
     public KitEditor(JFrame parent, Document document, Listener listener) {
         parent.setEnabled(false);
@@ -78,11 +91,13 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         setTitle("Kit Editor");
         createSamplesFromRom();
         updateRomView();
+        document.subscribeChanges(kitChangeListener, DocumentChange.tagged(DocumentChange.Tag.KIT));
 
         saveRomButton.addActionListener(e -> {
             document.setRomImage(romImage);
             listener.saveRom();
             romImage = document.romImage();
+            editedBanks.clear();
             updateButtonStates();
         });
 
@@ -95,6 +110,11 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
             public void windowClosing(WindowEvent e) {
                 super.windowClosing(e);
                 keyboardFocusManager.removeKeyEventPostProcessor(padKeyHandler);
+                // Installs the results of the last changes, which compiles them into romImage.
+                closing = true;
+                document.unsubscribeChanges(kitChangeListener);
+                sampleProcessor.drain();
+                sampleProcessor.shutdown();
                 document.setRomImage(romImage);
                 parent.setEnabled(true);
             }
@@ -183,22 +203,54 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         }
         reloadAllSamples();
     }
-    
+
     private void reloadAllSamples() {
-        int index = samplePicker.getSelectedIndex();
-        try {
-            for (Sample s : samples[selectedBank]) {
-                if (s != null) {
-                    s.reload(halfSpeed.isSelected());
-                }
+        reloadAllSamples(null);
+    }
+
+    /**
+     * Reloads the samples of the selected bank in the background, then compiles the kit.
+     *
+     * @param afterReload run after the reloaded samples have been installed, or null
+     */
+    private void reloadAllSamples(Runnable afterReload) {
+        final int bank = selectedBank;
+        final boolean halfSpeed = this.halfSpeed.isSelected();
+        final Sample[] originals = samples[bank].clone();
+        final Sample[] copies = new Sample[originals.length];
+        for (int i = 0; i < originals.length; ++i) {
+            if (originals[i] != null) {
+                copies[i] = Sample.dupeSample(originals[i]);
             }
-        } catch (Exception e) {
-            showFileErrorMessage(e);
-            e.printStackTrace();
         }
-        compileKit();
-        updateRomView();
-        samplePicker.setSelectedIndex(index);
+        sampleProcessor.submit(ALL_SAMPLES, () -> {
+            for (Sample copy : copies) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (copy != null) {
+                    copy.reload(halfSpeed);
+                }
+            }
+            return copies;
+        }, reloaded -> {
+            if (bank != selectedBank) {
+                return;
+            }
+            for (int i = 0; i < reloaded.length; ++i) {
+                // Samples that were replaced meanwhile are kept.
+                if (samples[bank][i] == originals[i]) {
+                    samples[bank][i] = reloaded[i];
+                }
+            }
+            int index = samplePicker.getSelectedIndex();
+            compileKit();
+            updateRomView();
+            samplePicker.setSelectedIndex(index);
+            if (afterReload != null && !closing) {
+                afterReload.run();
+            }
+        }, this::showFileErrorMessage);
     }
 
     private void reloadSample() {
@@ -223,50 +275,71 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         if (handlingSpinnerChange) {
             return;
         }
-        int index = samplePicker.getSelectedIndex();
+        final int index = samplePicker.getSelectedIndex();
         if (index < 0) {
             return;
         }
-        Sample sample = samples[selectedBank][index];
+        final Sample sample = samples[selectedBank][index];
         if (sample == null || !sample.canAdjustVolume()) {
             return;
         }
-        handlingSpinnerChange = true;
-        sample.setVolumeDb((int)volumeSpinner.getValue());
-        if ((int)pitchSpinner.getValue() != sample.getPitchSemitones()) {
-            sample.setPitchSemitones((int) pitchSpinner.getValue());
-            try {
-                sample.reload(halfSpeed.isSelected());
-            } catch (UnsupportedAudioFileException | IOException e) {
-                e.printStackTrace();
-                showFileErrorMessage(e);
+        final int bank = selectedBank;
+        final int volumeDb = (int) volumeSpinner.getValue();
+        final int pitch = (int) pitchSpinner.getValue();
+        final int trim = (int) trimSpinner.getValue();
+        final boolean dither = this.dither.isSelected();
+        final boolean halfSpeed = this.halfSpeed.isSelected();
+        // Works on a copy, so the UI keeps a consistent sample until the result is installed.
+        final Sample processed = Sample.dupeSample(sample);
+        final boolean pitchChanged = pitch != sample.getPitchSemitones();
+        processed.setVolumeDb(volumeDb);
+        processed.setPitchSemitones(pitch);
+        processed.setTrim(trim);
+        processed.setDither(dither);
+        sampleProcessor.submit(index, () -> {
+            if (pitchChanged) {
+                processed.reload(halfSpeed);
+            } else {
+                processed.processSamples();
             }
+            return processed;
+        }, result -> onSampleProcessed(bank, index, sample, result), this::showFileErrorMessage);
+    }
+
+    private void onSampleProcessed(int bank, int index, Sample original, Sample sample) {
+        if (bank != selectedBank || samples[bank][index] != original) {
+            return;
         }
-        sample.setTrim((int)trimSpinner.getValue());
-        sample.setDither(dither.isSelected());
-        sample.processSamples();
+        samples[bank][index] = sample;
+        boolean selected = samplePicker.getSelectedIndex() == index;
+        handlingSpinnerChange = true;
         compileKit();
         if (bytesFree() < 0) {
             // Sample did not fit, likely due to increased volume. Trim to fit.
             int fixedTrim = sample.getTrim() - bytesFree() / 16;
             assert fixedTrim >= 0;
-            trimSpinner.setValue(fixedTrim);
+            if (selected) {
+                trimSpinner.setValue(fixedTrim);
+            }
             sample.setTrim(fixedTrim);
             sample.processSamples();
             compileKit();
         }
         // Makes sure trim is in valid range.
         int maxTrim = maxTrim(sample);
-        if ((int)trimSpinner.getValue() > maxTrim) {
-            trimSpinner.setValue(maxTrim);
+        if (sample.getTrim() > maxTrim) {
+            if (selected) {
+                trimSpinner.setValue(maxTrim);
+            }
             sample.setTrim(maxTrim);
             sample.processSamples();
             compileKit();
         }
-        samplePicker.setSelectedIndex(index);
-        dither.setSelected(sample.getDither());
-        Sound.stopAll();
-        playSample();
+        if (selected && !closing) {
+            dither.setSelected(sample.getDither());
+            Sound.stopAll();
+            playSample();
+        }
         handlingSpinnerChange = false;
         updateKitSizeLabel();
     }
@@ -538,6 +611,112 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         return new String(buf);
     }
 
+    /**
+     * Picks up kit banks changed outside of the editor, e.g. by undo, reading only the
+     * changed banks. Banks with edits not yet handed to the document are kept as they are.
+     * Only the samples and bank list entries of the picked up banks are refreshed.
+     */
+    private void onKitBanksChanged(DocumentChange change) {
+        if (closing || !document.hasRomImage()) {
+            return;
+        }
+        int[] listedBefore = listedBanks();
+        BitSet banks = change.romBanks();
+        BitSet pickedUp = new BitSet();
+        for (int bank = banks.nextSetBit(0); bank >= 0 && bank < RomUtilities.BANK_COUNT;
+             bank = banks.nextSetBit(bank + 1)) {
+            if (editedBanks.get(bank)) {
+                continue;
+            }
+            int offset = bank * RomUtilities.BANK_SIZE;
+            document.readRom(offset, documentBank, 0, documentBank.length);
+            if (!bankEquals(documentBank, offset)) {
+                System.arraycopy(documentBank, 0, romImage, offset, documentBank.length);
+                pickedUp.set(bank);
+            }
+        }
+        if (pickedUp.isEmpty()) {
+            return;
+        }
+
+        int[] listedAfter = listedBanks();
+        if (!Arrays.equals(listedBefore, listedAfter)) {
+            // A bank turned into or from a kit, which shifts the bank list. Moves the
+            // samples of the other kits along.
+            Sample[][] samplesBefore = samples.clone();
+            int selectedRomBank = listedBefore[selectedBank];
+            for (int uiBank = 0; uiBank < samples.length; ++uiBank) {
+                samples[uiBank] = new Sample[MAX_SAMPLES];
+            }
+            selectedBank = 0;
+            for (int uiBank = 0; uiBank < listedAfter.length; ++uiBank) {
+                int before = Arrays.binarySearch(listedBefore, listedAfter[uiBank]);
+                if (before >= 0 && !pickedUp.get(listedAfter[uiBank])) {
+                    samples[uiBank] = samplesBefore[before];
+                }
+                if (listedAfter[uiBank] <= selectedRomBank) {
+                    selectedBank = uiBank;
+                }
+            }
+            bankBox.removeActionListener(bankBoxListener);
+            bankBox.removeAllItems();
+            for (int uiBank = 0; uiBank < listedAfter.length; ++uiBank) {
+                bankBox.addItem(bankBoxItem(uiBank, listedAfter[uiBank]));
+            }
+            bankBox.setSelectedIndex(selectedBank);
+            bankBox.addActionListener(bankBoxListener);
+            createSamplesFromRom();
+            updateBankView();
+            updateSampleView();
+            return;
+        }
+
+        bankBox.removeActionListener(bankBoxListener);
+        for (int uiBank = 0; uiBank < listedAfter.length; ++uiBank) {
+            int bank = listedAfter[uiBank];
+            if (!pickedUp.get(bank)) {
+                continue;
+            }
+            Arrays.fill(samples[uiBank], null);
+            bankBox.removeItemAt(uiBank);
+            bankBox.insertItemAt(bankBoxItem(uiBank, bank), uiBank);
+        }
+        bankBox.setSelectedIndex(selectedBank);
+        bankBox.addActionListener(bankBoxListener);
+        if (pickedUp.get(listedAfter[selectedBank])) {
+            createSamplesFromRom();
+            updateBankView();
+            updateSampleView();
+        }
+    }
+
+    private boolean bankEquals(byte[] bank, int offset) {
+        for (int i = 0; i < bank.length; ++i) {
+            if (bank[i] != romImage[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ROM banks shown in the bank list, in list order.
+     */
+    private int[] listedBanks() {
+        int[] banks = new int[RomUtilities.BANK_COUNT];
+        int count = 0;
+        for (int bank = 0; bank < RomUtilities.BANK_COUNT; ++bank) {
+            if (isKitBank(bank) || isUninitializedBank(bank)) {
+                banks[count++] = bank;
+            }
+        }
+        return Arrays.copyOf(banks, count);
+    }
+
+    private String bankBoxItem(int uiBank, int romBank) {
+        return Integer.toHexString(uiBank + 1).toUpperCase() + ". " + getKitName(romBank);
+    }
+
     private void updateRomView() {
         int tmp = bankBox.getSelectedIndex();
         bankBox.removeActionListener(bankBoxListener);
@@ -546,7 +725,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         int l_ui_index = 0;
         for (int bankNo = 0; bankNo < RomUtilities.BANK_COUNT; bankNo++) {
             if (isKitBank(bankNo) || isUninitializedBank(bankNo)) {
-                bankBox.addItem(Integer.toHexString(++l_ui_index).toUpperCase() + ". " + getKitName(bankNo));
+                bankBox.addItem(bankBoxItem(l_ui_index++, bankNo));
             }
         }
         bankBox.setSelectedIndex(tmp == -1 ? 0 : tmp);
@@ -827,6 +1006,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
     }
 
     private void createKit() {
+        editedBanks.set(getSelectedROMBank());
         //clear all bank
         int offset = getROMOffsetForSelectedBank();
         int max_offset = getROMOffsetForSelectedBank() + RomUtilities.BANK_SIZE;
@@ -859,6 +1039,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
     }
 
     private void renameKit(String s) {
+        editedBanks.set(getSelectedROMBank());
         s = s.toUpperCase();
         int offset = getROMOffsetForSelectedBank() + 0x52;
         for (int i = 0; i < 6; i++) {
@@ -920,6 +1101,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
     }
 
     private void renameSample(int sampleIndex, String sampleName) {
+        editedBanks.set(getSelectedROMBank());
         samples[selectedBank][sampleIndex].setName(sampleName);
         int offset = getROMOffsetForSelectedBank() + 0x22 + sampleIndex * 3;
         for (int i = 0; i < 3; ++i) {
@@ -944,6 +1126,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         if (kitTooBig()) {
             return;
         }
+        editedBanks.set(getSelectedROMBank());
 
         byte[] newSamples = new byte[RomUtilities.BANK_SIZE];
         int[] lengths = new int[15];
@@ -987,6 +1170,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
     }
 
     private void dropSample() {
+        editedBanks.set(getSelectedROMBank());
         ArrayList<Integer> indices = samplePicker.getSelectedIndices();
         for (int indexIt = 0; indexIt < indices.size(); ++indexIt) {
             // Assumes that indices are sorted...
@@ -1081,7 +1265,7 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
         reloadSampleButton.setEnabled(enableVolume);
         addSampleButton.setEnabled(totalSampleSizeInBytes() < MAX_SAMPLE_SPACE);
         saveRomButton.setEnabled(!kitTooBig() &&
-                (!Arrays.equals(document.romImage(), romImage) ||
+                (!document.romImageEquals(romImage) ||
                         document.isRomDirty()));
 
         previousBankButton.setEnabled(selectedBank > 0);
@@ -1149,12 +1333,10 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
             compileKit();
         }
         updateButtonStates();
-        reloadAllSamples();
-        updateRomView();
-        JOptionPane.showMessageDialog(this,
+        reloadAllSamples(() -> JOptionPane.showMessageDialog(this,
                 "Trimmed all samples to fit.",
                 "Done",
-                JOptionPane.INFORMATION_MESSAGE);
+                JOptionPane.INFORMATION_MESSAGE));
     }
 
     private void duplicateSample(Sample sample) {
@@ -1193,11 +1375,11 @@ public class KitEditor extends JFrame implements SamplePicker.Listener {
                     JOptionPane.ERROR_MESSAGE);
             return;
         } 
-        reloadAllSamples();
-        updateRomView();
-        samplePicker.setSelectedIndex(sampleSlot);
-        playSample();
-        updateButtonStates();
+        reloadAllSamples(() -> {
+            samplePicker.setSelectedIndex(sampleSlot);
+            playSample();
+            updateButtonStates();
+        });
     }
     
     private void pasteSample() {
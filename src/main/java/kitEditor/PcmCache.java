@@ -0,0 +1,188 @@
+package kitEditor;
+
+import com.laszlosystems.libresample4j.Resampler;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Least recently used caches of decoded WAV files and of their resampled versions,
+ * bounded by the bytes of sample data they hold.
+ * <p>
+ * Decoded files are keyed by path, modification time and size, so edited files are
+ * decoded again. Resampled buffers are keyed by decoded file, output rate and low-pass
+ * filter settings. The cached arrays are shared and must not be modified. Thread safe.
+ */
+class PcmCache {
+    private static final PcmCache shared = new PcmCache(64 << 20, 16 << 20);
+
+    /**
+     * Decoded mono 16-bit PCM of a WAV file.
+     */
+    static class Source {
+        final short[] samples;
+        final float sampleRate;
+
+        Source(short[] samples, float sampleRate) {
+            this.samples = samples;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    interface Decoder {
+        Source decode(File file) throws IOException, UnsupportedAudioFileException;
+    }
+
+    private static final class SourceKey {
+        final String path;
+        final long lastModified;
+        final long length;
+
+        SourceKey(File file) {
+            path = file.getAbsolutePath();
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SourceKey)) {
+                return false;
+            }
+            SourceKey key = (SourceKey) o;
+            return path.equals(key.path) && lastModified == key.lastModified && length == key.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, lastModified, length);
+        }
+    }
+
+    private static final class ResampledKey {
+        final SourceKey source;
+        final double outSampleRate;
+        final double rollOff;
+        final double beta;
+
+        ResampledKey(SourceKey source, double outSampleRate) {
+            this.source = source;
+            this.outSampleRate = outSampleRate;
+            rollOff = Resampler.RollOff;
+            beta = Resampler.Beta;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ResampledKey)) {
+                return false;
+            }
+            ResampledKey key = (ResampledKey) o;
+            return source.equals(key.source) && outSampleRate == key.outSampleRate
+                    && rollOff == key.rollOff && beta == key.beta;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, outSampleRate, rollOff, beta);
+        }
+    }
+
+    private final Lru<SourceKey, Source> sources;
+    private final Lru<ResampledKey, short[]> resampled;
+
+    PcmCache(long maxSourceBytes, long maxResampledBytes) {
+        sources = new Lru<>(maxSourceBytes);
+        resampled = new Lru<>(maxResampledBytes);
+    }
+
+    static PcmCache shared() {
+        return shared;
+    }
+
+    /**
+     * Returns the samples of file resampled to outSampleRate, decoding and resampling
+     * only if not cached.
+     */
+    short[] samples(File file, double outSampleRate, Decoder decoder)
+            throws IOException, UnsupportedAudioFileException {
+        SourceKey sourceKey = new SourceKey(file);
+        ResampledKey resampledKey = new ResampledKey(sourceKey, outSampleRate);
+        short[] samples = resampled.get(resampledKey);
+        if (samples != null) {
+            return samples;
+        }
+        Source source = sources.get(sourceKey);
+        if (source == null) {
+            source = decoder.decode(file);
+            sources.put(sourceKey, source, 2L * source.samples.length);
+        }
+        samples = Sound.resample(source.sampleRate, outSampleRate, source.samples);
+        resampled.put(resampledKey, samples, 2L * samples.length);
+        return samples;
+    }
+
+    void clear() {
+        sources.clear();
+        resampled.clear();
+    }
+
+    private static class Lru<K, V> {
+        private static class Entry<V> {
+            final V value;
+            final long size;
+
+            Entry(V value, long size) {
+                this.value = value;
+                this.size = size;
+            }
+        }
+
+        private final long maxSize;
+        private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        Lru(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        synchronized V get(K key) {
+            Entry<V> entry = entries.get(key);
+            return entry == null ? null : entry.value;
+        }
+
+        /**
+         * Adds an entry, evicting the least recently used ones to stay within maxSize.
+         * Entries larger than maxSize are not cached.
+         */
+        synchronized void put(K key, V value, long valueSize) {
+            if (valueSize > maxSize) {
+                return;
+            }
+            Entry<V> previous = entries.put(key, new Entry<>(value, valueSize));
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += valueSize;
+            Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Map.Entry<K, Entry<V>> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                size -= eldest.getValue().size;
+                it.remove();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+    }
+}
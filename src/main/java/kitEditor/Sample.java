@@ -1,6 +1,7 @@
 package kitEditor;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Random;
 import javax.sound.sampled.*;
 
@@ -207,24 +208,50 @@ class Sample {
         return intBuffer;
     }
 
+    // The returned array is shared through PcmCache and must not be modified.
     private static short[] readSamples(File file, boolean halfSpeed, double outRateFactor) throws UnsupportedAudioFileException, IOException {
-        AudioInputStream ais = AudioSystem.getAudioInputStream(file);
-        float inSampleRate = ais.getFormat().getSampleRate();
-        AudioFormat outFormat = new AudioFormat(inSampleRate, 16, 1, true, false);
-        AudioInputStream convertedAis = AudioSystem.getAudioInputStream(outFormat, ais);
-        byte[] b = new byte[convertedAis.available()];
-        int read = convertedAis.read(b);
-        assert read == b.length;
-        short[] samples = new short[b.length / 2];
-        for (int i = 0; i < samples.length; ++i) {
-            samples[i] = (short) ((b[i * 2 + 1] * 256) + ((short)b[i * 2] & 0xff));
-        }
-        convertedAis.close();
-        ais.close();
-
         double outSampleRate = halfSpeed ? 5734 : 11468;
         outSampleRate *= outRateFactor;
-        return Sound.resample(inSampleRate, outSampleRate, samples);
+        return PcmCache.shared().samples(file, outSampleRate, Sample::decode);
+    }
+
+    private static final int READ_CHUNK_SIZE = 0x4000;
+
+    // Reads fixed-size chunks until end of stream, since read may return fewer bytes
+    // than requested and available() is only an estimate.
+    private static PcmCache.Source decode(File file) throws UnsupportedAudioFileException, IOException {
+        try (AudioInputStream ais = AudioSystem.getAudioInputStream(file)) {
+            float inSampleRate = ais.getFormat().getSampleRate();
+            AudioFormat outFormat = new AudioFormat(inSampleRate, 16, 1, true, false);
+            try (AudioInputStream convertedAis = AudioSystem.getAudioInputStream(outFormat, ais)) {
+                // Grows beyond the frame length from the header if needed, which may be wrong.
+                long frameLength = convertedAis.getFrameLength();
+                short[] samples = new short[frameLength == AudioSystem.NOT_SPECIFIED
+                        ? READ_CHUNK_SIZE
+                        : (int) Math.min(frameLength, 1 << 24)];
+                int sampleCount = 0;
+                byte[] b = new byte[READ_CHUNK_SIZE];
+                int byteCount = 0;
+                int read;
+                while ((read = convertedAis.read(b, byteCount, b.length - byteCount)) != -1) {
+                    byteCount += read;
+                    int chunkSamples = byteCount / 2;
+                    if (sampleCount + chunkSamples > samples.length) {
+                        samples = Arrays.copyOf(samples, Math.max(sampleCount + chunkSamples, samples.length * 2));
+                    }
+                    for (int i = 0; i < chunkSamples; ++i) {
+                        samples[sampleCount++] = (short) ((b[i * 2 + 1] * 256) + ((short) b[i * 2] & 0xff));
+                    }
+                    // Keeps an odd byte for the next read.
+                    byteCount -= chunkSamples * 2;
+                    if (byteCount != 0) {
+                        b[0] = b[chunkSamples * 2];
+                    }
+                }
+                return new PcmCache.Source(sampleCount == samples.length ? samples : Arrays.copyOf(samples, sampleCount),
+                        inSampleRate);
+            }
+        }
     }
 
     // Adds triangular probability density function dither noise.
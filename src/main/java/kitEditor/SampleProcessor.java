@@ -0,0 +1,168 @@
+package kitEditor;
+
+import javax.swing.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs sample decoding and resampling off the event dispatch thread.
+ * <p>
+ * Jobs are submitted under a key, e.g. a sample slot. Jobs with the same key run one
+ * after another, and a job submitted while another one with the same key is running
+ * replaces any job still waiting, so that dragging a spinner never queues up more than
+ * one job per key. Only the result of the latest job for a key is published. Results
+ * and errors are published on the publisher executor, which is the event dispatch
+ * thread unless a test supplies another one, so that the UI can install them in one step.
+ */
+class SampleProcessor {
+    private static class Job<T> {
+        final Callable<T> callable;
+        final Consumer<T> onDone;
+        final Consumer<Exception> onError;
+        // Set by the worker once the job has run.
+        volatile Runnable publication;
+
+        Job(Callable<T> callable, Consumer<T> onDone, Consumer<Exception> onError) {
+            this.callable = callable;
+            this.onDone = onDone;
+            this.onError = onError;
+        }
+
+        void run() {
+            try {
+                T result = callable.call();
+                publication = () -> onDone.accept(result);
+            } catch (InterruptedException e) {
+                // Shut down.
+                publication = () -> {
+                };
+            } catch (Exception e) {
+                publication = () -> onError.accept(e);
+            }
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Executor publisher;
+    // Guards latestJobs and busyKeys.
+    private final Object lock = new Object();
+    // Latest job per key, until published. Results of other jobs are dropped.
+    private final Map<Object, Job<?>> latestJobs = new HashMap<>();
+    // Keys with a worker running their jobs.
+    private final Set<Object> busyKeys = new HashSet<>();
+
+    SampleProcessor() {
+        this(Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r -> {
+            Thread thread = new Thread(r, "Sample processor");
+            thread.setDaemon(true);
+            return thread;
+        }), SwingUtilities::invokeLater);
+    }
+
+    SampleProcessor(ExecutorService executor, Executor publisher) {
+        this.executor = executor;
+        this.publisher = publisher;
+    }
+
+    /**
+     * Runs job in the background after any running job with the same key, superseding
+     * jobs with the same key that have not been published yet.
+     *
+     * @param onDone  receives the result, unless a newer job has been submitted meanwhile
+     * @param onError receives exceptions thrown by the job, under the same condition
+     */
+    <T> void submit(Object key, Callable<T> job, Consumer<T> onDone, Consumer<Exception> onError) {
+        synchronized (lock) {
+            latestJobs.put(key, new Job<>(job, onDone, onError));
+            if (!busyKeys.add(key)) {
+                // The running worker picks it up.
+                return;
+            }
+        }
+        executor.execute(() -> runJobs(key));
+    }
+
+    private void runJobs(Object key) {
+        Job<?> job;
+        synchronized (lock) {
+            job = latestJobs.get(key);
+            if (job == null) {
+                // Shut down.
+                busyKeys.remove(key);
+                lock.notifyAll();
+                return;
+            }
+        }
+        boolean done = false;
+        try {
+            while (!done) {
+                job.run();
+                synchronized (lock) {
+                    Job<?> latest = latestJobs.get(key);
+                    done = latest == job || latest == null;
+                    if (!done) {
+                        // Superseded while running.
+                        job = latest;
+                    }
+                }
+            }
+        } finally {
+            // Also on errors, so that drain() does not wait forever.
+            synchronized (lock) {
+                busyKeys.remove(key);
+                lock.notifyAll();
+            }
+        }
+        final Job<?> finishedJob = job;
+        publisher.execute(() -> publish(key, finishedJob));
+    }
+
+    private void publish(Object key, Job<?> job) {
+        synchronized (lock) {
+            if (latestJobs.get(key) != job || job.publication == null) {
+                return;
+            }
+            latestJobs.remove(key);
+        }
+        job.publication.run();
+    }
+
+    /**
+     * Waits for all submitted jobs and publishes their results on the calling thread,
+     * including jobs submitted by the published callbacks. Call on the publisher thread
+     * before shutdown(), e.g. before handing results back to the document.
+     */
+    void drain() {
+        while (true) {
+            List<Map.Entry<Object, Job<?>>> finished;
+            synchronized (lock) {
+                while (!busyKeys.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (latestJobs.isEmpty()) {
+                    return;
+                }
+                finished = new ArrayList<>(latestJobs.entrySet());
+            }
+            for (Map.Entry<Object, Job<?>> entry : finished) {
+                publish(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Cancels all jobs and stops the worker threads.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            latestJobs.clear();
+        }
+        executor.shutdownNow();
+    }
+}
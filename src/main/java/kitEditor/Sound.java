@@ -2,7 +2,9 @@
 
 package kitEditor;
 
+import com.laszlosystems.libresample4j.PolyphaseResampler;
 import com.laszlosystems.libresample4j.Resampler;
+import com.laszlosystems.libresample4j.SampleBuffers;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -82,41 +84,77 @@ public class Sound {
         }
     }
 
-    public static short[] resample(double inSampleRate, double outSampleRate, short[] samples) {
-        if (inSampleRate == outSampleRate) {
-            return samples;
+    /**
+     * Reads 16-bit samples as floats with the DC offset removed, and collects the
+     * resampled floats. The resampler converts one chunk at a time, so no float copy
+     * of the whole input is made.
+     */
+    private static class PcmBuffers implements SampleBuffers {
+        private final short[] in;
+        private final float dcOffset;
+        private final float[] out;
+        private int inPos;
+        private int outPos;
+
+        PcmBuffers(short[] in, float[] out) {
+            this.in = in;
+            this.out = out;
+            long sum = 0;
+            for (short sample : in) {
+                sum += sample;
+            }
+            dcOffset = in.length == 0 ? 0 : (float) sum / in.length / -Short.MIN_VALUE;
         }
-        float[] inBuf = new float[samples.length];
-        float dcOffset = 0;
-        for (int i = 0; i < inBuf.length; ++i) {
-            inBuf[i] = (float) samples[i] / -Short.MIN_VALUE;
-            dcOffset += inBuf[i] / inBuf.length;
+
+        public int getInputBufferLength() {
+            return in.length - inPos;
+        }
+
+        public int getOutputBufferLength() {
+            return out.length - outPos;
+        }
+
+        public void produceInput(float[] array, int offset, int length) {
+            for (int i = 0; i < length; ++i) {
+                array[offset + i] = (float) in[inPos++] / -Short.MIN_VALUE - dcOffset;
+            }
         }
 
-        // Removes DC offset.
-        for (int i = 0; i < inBuf.length; ++i) {
-            inBuf[i] -= dcOffset;
+        public void consumeOutput(float[] array, int offset, int length) {
+            System.arraycopy(array, offset, out, outPos, length);
+            outPos += length;
         }
+    }
 
+    public static short[] resample(double inSampleRate, double outSampleRate, short[] samples) {
+        if (inSampleRate == outSampleRate) {
+            return samples;
+        }
         double factor = outSampleRate / inSampleRate;
-        float[] outBuf = new float[(int)(inBuf.length * factor + 1)];
-        Resampler resampler = new Resampler(true, factor, factor);
-        Resampler.Result result = resampler.process(factor, inBuf, 0, inBuf.length, true, outBuf, 0, outBuf.length);
+        float[] outBuf;
+        PcmBuffers buffers;
+        // Common rate pairs are resampled by a precomputed polyphase filter.
+        PolyphaseResampler polyphaseResampler = PolyphaseResampler.forFactor(factor);
+        if (polyphaseResampler != null) {
+            outBuf = new float[polyphaseResampler.getOutputLength(samples.length)];
+            buffers = new PcmBuffers(samples, outBuf);
+            polyphaseResampler.process(buffers);
+        } else {
+            outBuf = new float[(int)(samples.length * factor + 1)];
+            buffers = new PcmBuffers(samples, outBuf);
+            Resampler resampler = new Resampler(true, factor, factor);
+            resampler.process(factor, buffers, true);
+        }
 
         // avoid clipping
-        float peak = 0;
-        for (float v : outBuf) {
-            peak = Math.max(peak, Math.abs(v));
-        }
-        if (peak > 1) {
-            for (int i = 0; i < outBuf.length; ++i) {
-                outBuf[i] /= peak;
-            }
+        float peak = 1;
+        for (int i = 0; i < buffers.outPos; ++i) {
+            peak = Math.max(peak, Math.abs(outBuf[i]));
         }
 
-        short[] finalBuf = new short[result.outputSamplesGenerated];
+        short[] finalBuf = new short[buffers.outPos];
         for (int i = 0; i < finalBuf.length; ++i) {
-            finalBuf[i] = (short)(outBuf[i] * Short.MAX_VALUE);
+            finalBuf[i] = (short)(outBuf[i] / peak * Short.MAX_VALUE);
         }
         return finalBuf;
     }
@@ -8,7 +8,9 @@ import utils.GlobalHolder;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.font.TextAttribute;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.prefs.Preferences;
 
 public class LSDPatcher {
@@ -52,6 +54,44 @@ public class LSDPatcher {
         System.out.println("java -jar LSDJPatcher.jar clone <inRomFile> <outRomlFile>");
         System.out.println(" Clones all customizations from a ROM file to another.\n");
 
+        System.out.println("Song commands accept globs such as \"carts/*.sav\" and process .sav files in parallel.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savls <savFile>...");
+        System.out.println(" Lists songs and block usage.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savadd <savFile> <romFile> <songFile>...");
+        System.out.println(" Adds .lsdsng/.lsdprj songs to the .sav and their kits to the ROM.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savrm <savFile> <slot>...");
+        System.out.println(" Removes the songs in the given slots, counted from 1.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savexport <romFile> <outDirectory> <savFile>...");
+        System.out.println(" Exports all songs to .lsdprj files, one directory per .sav.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savvalidate <savFile>...");
+        System.out.println(" Checks songs, FAT and block switches for corruption.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savcompact <savFile>...");
+        System.out.println(" Recompresses songs and gathers free blocks.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savkits [--free] <romFile> <savFile>");
+        System.out.println(" Lists the ROM kit banks and the songs using them. --free clears the unused ones.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savindex <indexFile> <directory>");
+        System.out.println(" Creates or updates an index of the songs in all .sav files below the directory.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savfind <indexFile> <name>[.<version>]|kit:<bank>");
+        System.out.println(" Lists indexed songs by name, or the songs using the kit in a ROM bank.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savsnap <storeDirectory> <savFile>...");
+        System.out.println(" Adds snapshots of .sav files to a store that keeps each distinct block once.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savrestore <storeDirectory> <snapshot> <savFile>");
+        System.out.println(" Writes a snapshot to a .sav file.\n");
+
+        System.out.println("java -jar LSDJPatcher.jar savdiff <storeDirectory> [<snapshot> <snapshot>]");
+        System.out.println(" Lists snapshots, or the songs that changed between two snapshots.\n");
+
     }
 
     public static void main(String[] args) {
@@ -92,7 +132,10 @@ public class LSDPatcher {
     }
 
     private static void processArguments(String[] args) {
+        // Command line functions must work without a display.
+        System.setProperty("java.awt.headless", "true");
         String command = args[0].toLowerCase();
+        List<String> rest = Arrays.asList(args).subList(1, args.length);
 
         boolean includeGfxCharacters = false;
         if(args.length > 2 && args[1].equalsIgnoreCase("--extended")) {
@@ -117,9 +160,41 @@ public class LSDPatcher {
         } else if (command.compareTo("clone") == 0 && args.length == 3) {
             // -1 to allow 1-3 range instead of 0-2
             CommandLineFunctions.copyAllCustomizations(args[1], args[2]);
+        } else if (command.compareTo("savls") == 0 && args.length >= 2) {
+            exitOnFailure(CommandLineFunctions.listSongs(rest));
+        } else if (command.compareTo("savadd") == 0 && args.length >= 4) {
+            exitOnFailure(CommandLineFunctions.addSongs(args[1], args[2], rest.subList(2, rest.size())));
+        } else if (command.compareTo("savrm") == 0 && args.length >= 3) {
+            exitOnFailure(CommandLineFunctions.removeSongs(args[1], rest.subList(1, rest.size())));
+        } else if (command.compareTo("savexport") == 0 && args.length >= 4) {
+            exitOnFailure(CommandLineFunctions.exportSongs(rest.subList(2, rest.size()), args[1], args[2]));
+        } else if (command.compareTo("savvalidate") == 0 && args.length >= 2) {
+            exitOnFailure(CommandLineFunctions.validateSongs(rest));
+        } else if (command.compareTo("savcompact") == 0 && args.length >= 2) {
+            exitOnFailure(CommandLineFunctions.compactSongs(rest));
+        } else if (command.compareTo("savkits") == 0 && args.length == 3) {
+            exitOnFailure(CommandLineFunctions.listKits(args[1], args[2], false));
+        } else if (command.compareTo("savkits") == 0 && args.length == 4 && args[1].equalsIgnoreCase("--free")) {
+            exitOnFailure(CommandLineFunctions.listKits(args[2], args[3], true));
+        } else if (command.compareTo("savindex") == 0 && args.length == 3) {
+            exitOnFailure(CommandLineFunctions.indexSavs(args[1], args[2]));
+        } else if (command.compareTo("savfind") == 0 && args.length == 3) {
+            exitOnFailure(CommandLineFunctions.findSongs(args[1], args[2]));
+        } else if (command.compareTo("savsnap") == 0 && args.length >= 3) {
+            exitOnFailure(CommandLineFunctions.snapshotSavs(args[1], rest.subList(1, rest.size())));
+        } else if (command.compareTo("savrestore") == 0 && args.length == 4) {
+            exitOnFailure(CommandLineFunctions.restoreSav(args[1], args[2], args[3]));
+        } else if (command.compareTo("savdiff") == 0 && (args.length == 2 || args.length == 4)) {
+            exitOnFailure(CommandLineFunctions.diffSnapshots(args[1], rest.subList(1, rest.size())));
         } else {
             usage();
         }
     }
 
+    private static void exitOnFailure(boolean ok) {
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
 }
@@ -14,6 +14,7 @@ import utils.RomUtilities;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
@@ -30,9 +31,17 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
     JButton editFontsButton = new JButton("Fonts");
     JButton editPalettesButton = new JButton("Palettes");
     JButton saveButton = new JButton("Save...");
+    JButton undoButton = new JButton("Undo");
+    JButton redoButton = new JButton("Redo");
+
+    private boolean foundPalettes;
 
     MainWindow() {
         document.subscribe(this);
+        document.subscribeChanges(change -> {
+            checkPalettes();
+            updateButtonsFromTextFields();
+        }, DocumentChange.tagged(DocumentChange.Tag.PALETTE));
 
         updateTitle();
         JPanel panel = new JPanel();
@@ -60,6 +69,8 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
         editPalettesButton.addActionListener(e -> openPaletteEditor());
         panel.add(editPalettesButton, "grow x");
 
+        addUndoButtons(panel);
+
         setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
         addWindowListener(new WindowAdapter() {
             @Override
@@ -80,6 +91,37 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
         NewVersionChecker.checkGithub(this);
     }
 
+    private void addUndoButtons(JPanel panel) {
+        Action undoAction = new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                document.undo();
+            }
+        };
+        Action redoAction = new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                document.redo();
+            }
+        };
+        undoButton.addActionListener(undoAction);
+        redoButton.addActionListener(redoAction);
+        panel.add(undoButton);
+        panel.add(redoButton);
+
+        InputMap inputMap = panel.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        inputMap.put(KeyStroke.getKeyStroke("control Z"), "undo");
+        inputMap.put(KeyStroke.getKeyStroke("control Y"), "redo");
+        panel.getActionMap().put("undo", undoAction);
+        panel.getActionMap().put("redo", redoAction);
+        updateUndoButtons();
+    }
+
+    private void updateUndoButtons() {
+        undoButton.setEnabled(document.canUndo());
+        redoButton.setEnabled(document.canRedo());
+    }
+
     private void openRomUpgradeTool() {
         RomUpgradeTool romUpgradeTool = new RomUpgradeTool(this, document);
         romUpgradeTool.setLocationRelativeTo(this);
@@ -139,6 +181,7 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
         } catch (IOException e) {
             resetSavTextField();
         }
+        checkPalettes();
         updateButtonsFromTextFields();
     }
 
@@ -190,6 +233,7 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
             resetSavTextField();
             e.printStackTrace();
         }
+        checkPalettes();
         updateButtonsFromTextFields();
     }
 
@@ -220,12 +264,16 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
         updateButtonsFromTextFields();
     }
 
-    void updateButtonsFromTextFields() {
+    // Copies the ROM, so only called when it was loaded or its palettes changed.
+    private void checkPalettes() {
         byte[] romImage = document.romImage();
-        boolean romOk = romImage != null;
+        foundPalettes = romImage != null && RomUtilities.validatePaletteData(romImage);
+    }
+
+    void updateButtonsFromTextFields() {
+        boolean romOk = document.hasRomImage();
         String savPath = savTextField.getText();
         boolean savPathOk = savPath.endsWith(".sav") && new File(savPath).exists();
-        boolean foundPalettes = romOk && RomUtilities.validatePaletteData(romImage);
 
         romTextField.setBackground(romOk ? Color.white : Color.pink);
         savTextField.setBackground(savPathOk ? Color.white : Color.pink);
@@ -241,11 +289,12 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
         updateTitle();
         upgradeRomButton.setEnabled(!dirty);
         saveButton.setEnabled(dirty);
+        updateUndoButtons();
     }
 
     private void updateTitle() {
         String title = "LSDPatcher v" + NewVersionChecker.getCurrentVersion();
-        if (document.romImage() != null) {
+        if (document.hasRomImage()) {
             title = title + " - " + document.romFile().getName();
             if (document.isDirty()) {
                 title = title + '*';
@@ -268,14 +317,12 @@ public class MainWindow extends JFrame implements IDocumentListener, KitEditor.L
             RomUtilities.fixChecksum(romImage);
             fileOutputStream.write(romImage);
             fileOutputStream.close();
-            if (document.savFile() != null && saveSavFile) {
+            if (document.hasSavFile() && saveSavFile) {
                 String savPath = romPath
                         .replace(".gbc", ".sav")
                         .replace(".gb", ".sav");
-                document.savFile().saveAs(savPath);
+                document.saveSavFile(savPath);
                 savTextField.setText(savPath);
-                document.loadSavFile(savPath);
-                document.clearSavDirty();
                 EditorPreferences.setLastPath("sav", savPath);
             }
             romTextField.setText(romPath);
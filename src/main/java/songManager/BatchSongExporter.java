@@ -0,0 +1,88 @@
+package songManager;
+
+import Document.LSDSavFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports songs of a .sav to .lsdprj files on a bounded pool of threads.
+ * <p>
+ * The file contents are gathered on the calling thread, since LSDSavFile is not thread
+ * safe, and each file is then written by one gather write on a pool thread. The .sav
+ * and ROM image must not be modified until export() returns.
+ */
+public class BatchSongExporter {
+    public interface Progress {
+        void exported(int done, int total);
+    }
+
+    private final int threadCount;
+
+    public BatchSongExporter() {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public BatchSongExporter(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Exports songs[i] to files[i]. Progress is reported on the calling thread.
+     *
+     * @return the files that could not be written, with the reason
+     */
+    public Map<File, IOException> export(LSDSavFile savFile,
+                                         byte[] romImage,
+                                         int[] songs,
+                                         File[] files,
+                                         Progress progress) throws InterruptedException {
+        Map<File, IOException> failures = new LinkedHashMap<>();
+        if (songs.length == 0) {
+            return failures;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, songs.length));
+        try {
+            CompletionService<Map.Entry<File, IOException>> completionService =
+                    new ExecutorCompletionService<>(executor);
+            for (int i = 0; i < songs.length; ++i) {
+                File file = files[i];
+                ByteBuffer[] buffers = savFile.songFileBuffers(songs[i], romImage);
+                completionService.submit(() -> {
+                    try {
+                        LSDSavFile.writeFully(file, buffers);
+                        return null;
+                    } catch (IOException e) {
+                        return new AbstractMap.SimpleEntry<>(file, e);
+                    }
+                });
+            }
+            for (int done = 1; done <= songs.length; ++done) {
+                Map.Entry<File, IOException> failure;
+                try {
+                    failure = completionService.take().get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                if (failure != null) {
+                    failures.put(failure.getKey(), failure.getValue());
+                }
+                if (progress != null) {
+                    progress.exported(done, songs.length);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+}
@@ -0,0 +1,310 @@
+package songManager;
+
+import Document.KitBankIndex;
+import Document.LSDSavFile;
+import Document.SongDecoder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the songs in a tree of .sav files, for finding songs and kit users without
+ * opening every .sav.
+ * <p>
+ * Scanning loads the .sav files in parallel on a ForkJoinPool. Files whose size and
+ * modification time are unchanged since a previous index are not read again. The index
+ * is stored as a compact binary file, see write() and read().
+ */
+public class SavLibraryIndex {
+    private static final int MAGIC = 0x4c534458;  // "LSDX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SONG_SLOTS = 0x20;
+
+    public static class Song {
+        final String savPath;
+        final int slot;
+        final String name;
+        final int version;
+        final int blockCount;
+        final boolean valid;
+        final long kitMask;
+        final long contentHash;
+
+        Song(String savPath, int slot, String name, int version, int blockCount,
+             boolean valid, long kitMask, long contentHash) {
+            this.savPath = savPath;
+            this.slot = slot;
+            this.name = name;
+            this.version = version;
+            this.blockCount = blockCount;
+            this.valid = valid;
+            this.kitMask = kitMask;
+            this.contentHash = contentHash;
+        }
+
+        public File savFile() {
+            return new File(savPath);
+        }
+
+        public int slot() {
+            return slot;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int version() {
+            return version;
+        }
+
+        public int blockCount() {
+            return blockCount;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Returns a mask with bit n set if the song uses kit n.
+         */
+        public long kitMask() {
+            return kitMask;
+        }
+
+        /**
+         * Returns a hash of the decoded song, equal for songs with the same contents.
+         * Meaningless for invalid songs.
+         */
+        public long contentHash() {
+            return contentHash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d. %s.%X %d blocks%s",
+                    savPath, slot + 1, name, version, blockCount, valid ? "" : " (corrupted)");
+        }
+    }
+
+    private static class Sav {
+        final String path;
+        final long lastModified;
+        final long length;
+        final List<Song> songs;
+
+        Sav(String path, long lastModified, long length, List<Song> songs) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.songs = songs;
+        }
+    }
+
+    private final Map<String, Sav> savs = new TreeMap<>();
+    private final Map<String, List<Song>> songsByName = new HashMap<>();
+
+    private SavLibraryIndex(Collection<Sav> savs) {
+        for (Sav sav : savs) {
+            this.savs.put(sav.path, sav);
+            for (Song song : sav.songs) {
+                songsByName.computeIfAbsent(song.name.toUpperCase(), name -> new ArrayList<>()).add(song);
+            }
+        }
+    }
+
+    /**
+     * Indexes all .sav files below directory.
+     *
+     * @param previous index to take entries for unchanged files from, or null
+     */
+    public static SavLibraryIndex scan(File directory, SavLibraryIndex previous) throws IOException {
+        List<File> savFiles;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            savFiles = paths
+                    .filter(Files::isRegularFile)
+                    .filter(path -> path.getFileName().toString().toLowerCase().endsWith(".sav"))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            List<Sav> savs = pool.submit(() -> savFiles.parallelStream()
+                    .map(file -> scanSav(file, previous))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList())).get();
+            return new SavLibraryIndex(savs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns null for files that cannot be read as .sav.
+     */
+    private static Sav scanSav(File file, SavLibraryIndex previous) {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (previous != null) {
+            Sav sav = previous.savs.get(path);
+            if (sav != null && sav.lastModified == lastModified && sav.length == length) {
+                return sav;
+            }
+        }
+
+        LSDSavFile savFile = new LSDSavFile();
+        try {
+            savFile.loadFromSav(path);
+        } catch (IOException e) {
+            return null;
+        }
+        List<Song> songs = new ArrayList<>();
+        SongDecoder decoder = new SongDecoder();
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        for (int slot = 0; slot < SONG_SLOTS; ++slot) {
+            int blockCount = savFile.getBlocksUsed(slot);
+            if (blockCount == 0) {
+                continue;
+            }
+            boolean valid = savFile.decodeSong(slot, decoder, song, 0) == SongDecoder.OK;
+            songs.add(new Song(path,
+                    slot,
+                    savFile.getFileName(slot),
+                    Integer.parseInt(savFile.version(slot), 16),
+                    blockCount,
+                    valid,
+                    valid ? LSDSavFile.usedKitMask(song, 0) : 0,
+                    valid ? KitBankIndex.hash(song, 0, song.length) : 0));
+        }
+        return new Sav(path, lastModified, length, songs);
+    }
+
+    public int savCount() {
+        return savs.size();
+    }
+
+    public List<Song> songs() {
+        List<Song> songs = new ArrayList<>();
+        for (Sav sav : savs.values()) {
+            songs.addAll(sav.songs);
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the songs with the given name, and version unless version is -1.
+     */
+    public List<Song> find(String name, int version) {
+        List<Song> songs = new ArrayList<>();
+        for (Song song : songsByName.getOrDefault(name.toUpperCase(), Collections.emptyList())) {
+            if (version == -1 || song.version == version) {
+                songs.add(song);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the songs that use the kit in the given ROM bank.
+     */
+    public List<Song> usingKitBank(int bank) {
+        long kitBit = 0;
+        for (int kit = 0; kit < 0x40; ++kit) {
+            if (LSDSavFile.kitBank(kit) == bank) {
+                kitBit = 1L << kit;
+            }
+        }
+        List<Song> songs = new ArrayList<>();
+        if (kitBit == 0) {
+            return songs;
+        }
+        for (Sav sav : savs.values()) {
+            for (Song song : sav.songs) {
+                if ((song.kitMask & kitBit) != 0) {
+                    songs.add(song);
+                }
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the valid songs whose decoded contents hash to contentHash.
+     */
+    public List<Song> withContentHash(long contentHash) {
+        List<Song> songs = new ArrayList<>();
+        for (Sav sav : savs.values()) {
+            for (Song song : sav.songs) {
+                if (song.valid && song.contentHash == contentHash) {
+                    songs.add(song);
+                }
+            }
+        }
+        return songs;
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(savs.size());
+            for (Sav sav : savs.values()) {
+                out.writeUTF(sav.path);
+                out.writeLong(sav.lastModified);
+                out.writeLong(sav.length);
+                out.writeByte(sav.songs.size());
+                for (Song song : sav.songs) {
+                    out.writeByte(song.slot);
+                    out.writeUTF(song.name);
+                    out.writeByte(song.version);
+                    out.writeByte(song.blockCount);
+                    out.writeBoolean(song.valid);
+                    out.writeLong(song.kitMask);
+                    out.writeLong(song.contentHash);
+                }
+            }
+        }
+    }
+
+    public static SavLibraryIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException(file.getName() + ": Not a song index!");
+            }
+            int savCount = in.readInt();
+            List<Sav> savs = new ArrayList<>(savCount);
+            for (int i = 0; i < savCount; ++i) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                int songCount = in.readUnsignedByte();
+                List<Song> songs = new ArrayList<>(songCount);
+                for (int j = 0; j < songCount; ++j) {
+                    songs.add(new Song(path,
+                            in.readUnsignedByte(),
+                            in.readUTF(),
+                            in.readUnsignedByte(),
+                            in.readUnsignedByte(),
+                            in.readBoolean(),
+                            in.readLong(),
+                            in.readLong()));
+                }
+                savs.add(new Sav(path, lastModified, length, songs));
+            }
+            return new SavLibraryIndex(savs);
+        }
+    }
+}
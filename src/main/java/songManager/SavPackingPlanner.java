@@ -0,0 +1,234 @@
+package songManager;
+
+import Document.LSDSavFile;
+import Document.SavFileWriter;
+import Document.SongFile;
+import utils.RomUtilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Distributes a library of .lsdsng/.lsdprj files over as few .sav/ROM pairs as possible.
+ * <p>
+ * Each .sav is limited by its song slots and blocks, and each ROM by its free kit banks.
+ * Kits are identified by content, so songs sharing a kit only need one bank when they end
+ * up in the same image, and kits already in the template ROM need none. Songs are placed
+ * first-fit in order of decreasing block count.
+ */
+public class SavPackingPlanner {
+    private static final int SONG_SLOTS = 0x20;
+
+    public static class Song {
+        final File file;
+        final int blockCount;
+        final List<ByteBuffer> newKits;
+
+        Song(File file, int blockCount, List<ByteBuffer> newKits) {
+            this.file = file;
+            this.blockCount = blockCount;
+            this.newKits = newKits;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public int blockCount() {
+            return blockCount;
+        }
+    }
+
+    public static class Image {
+        final List<Song> songs = new ArrayList<>();
+        final Set<ByteBuffer> newKits = new HashSet<>();
+        int blockCount;
+
+        public List<Song> songs() {
+            return Collections.unmodifiableList(songs);
+        }
+
+        public int blockCount() {
+            return blockCount;
+        }
+
+        public int newKitCount() {
+            return newKits.size();
+        }
+    }
+
+    private final LSDSavFile savTemplate;
+    private final byte[] romTemplate;
+    private final int blocksPerSav;
+    private final int freeKitBanks;
+    private final Set<ByteBuffer> romKits = new HashSet<>();
+
+    /**
+     * @param savTemplate .sav whose header is used for the generated images. Its songs are not kept.
+     * @param romTemplate ROM the generated ROM images are based on.
+     */
+    public SavPackingPlanner(LSDSavFile savTemplate, byte[] romTemplate) {
+        this.savTemplate = emptyCopy(savTemplate);
+        this.romTemplate = romTemplate;
+        blocksPerSav = this.savTemplate.freeBlockCount();
+
+        int freeBanks = 0;
+        for (int bank = 0; bank < romTemplate.length / RomUtilities.BANK_SIZE; ++bank) {
+            int offset = bank * RomUtilities.BANK_SIZE;
+            if (romTemplate[offset] == -1 && romTemplate[offset + 1] == -1) {
+                ++freeBanks;
+            } else {
+                romKits.add(digest(romTemplate, offset));
+            }
+        }
+        freeKitBanks = freeBanks;
+    }
+
+    /**
+     * Plans all .lsdsng/.lsdprj files below directory.
+     */
+    public List<Image> plan(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return plan(paths
+                    .filter(Files::isRegularFile)
+                    .map(Path::toFile)
+                    .filter(f -> f.getName().toLowerCase().endsWith(".lsdsng") ||
+                            f.getName().toLowerCase().endsWith(".lsdprj"))
+                    .sorted()
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    public List<Image> plan(List<File> songFiles) throws IOException {
+        List<Song> songs;
+        try {
+            songs = songFiles.parallelStream().map(this::readSong).collect(Collectors.toCollection(ArrayList::new));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        songs.sort(Comparator.comparingInt(Song::blockCount).reversed());
+
+        List<Image> images = new ArrayList<>();
+        for (Song song : songs) {
+            if (song.blockCount() > blocksPerSav || song.newKits.size() > freeKitBanks) {
+                throw new IOException(song.file().getName() + " does not fit in an empty .sav/ROM");
+            }
+            Image target = null;
+            for (Image image : images) {
+                if (fits(image, song)) {
+                    target = image;
+                    break;
+                }
+            }
+            if (target == null) {
+                target = new Image();
+                images.add(target);
+            }
+            target.songs.add(song);
+            target.blockCount += song.blockCount();
+            target.newKits.addAll(song.newKits);
+        }
+        return images;
+    }
+
+    /**
+     * Returns a lower bound for the number of images needed, for judging a plan.
+     */
+    public int lowerBound(List<Image> plan) {
+        int songs = 0;
+        int blocks = 0;
+        for (Image image : plan) {
+            songs += image.songs.size();
+            blocks += image.blockCount;
+        }
+        return Math.max((songs + SONG_SLOTS - 1) / SONG_SLOTS, (blocks + blocksPerSav - 1) / blocksPerSav);
+    }
+
+    /**
+     * Writes each planned image as baseName-NN.sav and baseName-NN.gb into directory.
+     *
+     * @throws IOException also if a song no longer fits, e.g. because it changed since planning
+     */
+    public void write(List<Image> plan, File directory, String baseName) throws IOException {
+        for (int i = 0; i < plan.size(); ++i) {
+            LSDSavFile savFile;
+            try {
+                savFile = savTemplate.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+            byte[] romImage = romTemplate.clone();
+            for (Song song : plan.get(i).songs) {
+                try {
+                    savFile.addSongFromFile(song.file().getAbsolutePath(), romImage);
+                } catch (LSDSavFile.AddSongException e) {
+                    throw new IOException(song.file() + ": " + e.getMessage(), e);
+                }
+            }
+            String name = String.format("%s-%02d", baseName, i + 1);
+            RomUtilities.fixChecksum(romImage);
+            SavFileWriter.writeAtomically(new File(directory, name + ".gb"), romImage);
+            savFile.saveAs(new File(directory, name + ".sav").getAbsolutePath());
+        }
+    }
+
+    private boolean fits(Image image, Song song) {
+        if (image.songs.size() == SONG_SLOTS || image.blockCount + song.blockCount() > blocksPerSav) {
+            return false;
+        }
+        int kitBanks = image.newKits.size();
+        for (ByteBuffer kit : song.newKits) {
+            if (!image.newKits.contains(kit)) {
+                ++kitBanks;
+            }
+        }
+        return kitBanks <= freeKitBanks;
+    }
+
+    private Song readSong(File file) {
+        try {
+            SongFile songFile = SongFile.read(file);
+            List<ByteBuffer> newKits = new ArrayList<>();
+            for (int kit = 0; kit < songFile.kitCount(); ++kit) {
+                ByteBuffer digest = digest(songFile.data(), songFile.kitOffset(kit));
+                if (!romKits.contains(digest) && !newKits.contains(digest)) {
+                    newKits.add(digest);
+                }
+            }
+            return new Song(file, songFile.blockCount(), newKits);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer digest(byte[] data, int offset) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            messageDigest.update(data, offset, RomUtilities.BANK_SIZE);
+            return ByteBuffer.wrap(messageDigest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static LSDSavFile emptyCopy(LSDSavFile savFile) {
+        try {
+            LSDSavFile copy = savFile.clone();
+            for (int song = 0; song < SONG_SLOTS; ++song) {
+                copy.clearSong(song);
+            }
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -12,6 +12,10 @@ import javax.swing.JList;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.event.ListSelectionListener;
 import javax.swing.event.ListSelectionEvent;
@@ -21,6 +25,8 @@ public class SongManager extends JFrame implements ListSelectionListener {
     JButton addLsdSngButton = new JButton();
     JButton clearSlotButton = new JButton();
     JButton exportLsdSngButton = new JButton();
+    JButton compactButton = new JButton();
+    JButton freeKitsButton = new JButton();
     JProgressBar jRamUsageIndicator = new JProgressBar();
     JList<String> songList = new JList<>( new String[] { " " } );
     JScrollPane songs = new JScrollPane(songList);
@@ -44,6 +50,12 @@ public class SongManager extends JFrame implements ListSelectionListener {
         exportLsdSngButton.setToolTipText("Export song to .lsdprj");
         exportLsdSngButton.setText("Export songs...");
         exportLsdSngButton.addActionListener(e -> exportLsdSngButton_actionPerformed());
+        compactButton.setToolTipText("Recompress songs and gather free blocks");
+        compactButton.setText("Compact");
+        compactButton.addActionListener(e -> compactButton_actionPerformed());
+        freeKitsButton.setToolTipText("Free ROM kit banks that no song uses");
+        freeKitsButton.setText("Free unused kits");
+        freeKitsButton.addActionListener(e -> freeKitsButton_actionPerformed());
         songList.addListSelectionListener(this);
 
         jRamUsageIndicator.setString("");
@@ -61,7 +73,9 @@ public class SongManager extends JFrame implements ListSelectionListener {
         panel.add(jRamUsageIndicator, "cell 0 6 1 1, growx");
         panel.add(addLsdSngButton, "cell 1 0 1 1, growx");
         panel.add(exportLsdSngButton, "cell 1 1 1 1, growx");
-        panel.add(clearSlotButton, "cell 1 2 1 1, growx, gaptop 10, aligny top");
+        panel.add(compactButton, "cell 1 2 1 1, growx");
+        panel.add(freeKitsButton, "cell 1 3 1 1, growx");
+        panel.add(clearSlotButton, "cell 1 4 1 1, growx, gaptop 10, aligny top");
 
         pack();
         setVisible(true);
@@ -70,8 +84,10 @@ public class SongManager extends JFrame implements ListSelectionListener {
             @Override
             public void windowClosing(WindowEvent e) {
                 super.windowClosing(e);
+                document.beginTransaction();
                 document.setSavFile(savFile);
                 document.setRomImage(romImage);
+                document.endTransaction();
                 parent.setEnabled(true);
             }
         });
@@ -94,6 +110,47 @@ public class SongManager extends JFrame implements ListSelectionListener {
         updateRamUsageIndicator();
     }
 
+    public void compactButton_actionPerformed() {
+        int freedBlocks = savFile.compact(true);
+        savFile.populateSongList(songList);
+        updateRamUsageIndicator();
+        JOptionPane.showMessageDialog(this,
+                freedBlocks == 1 ? "Freed 1 block." : "Freed " + freedBlocks + " blocks.",
+                "Compact",
+                JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    public void freeKitsButton_actionPerformed() {
+        if (!savFile.kitUsageIndex().unreadableSongs().isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "Some songs are corrupted, so the kits they use are unknown.",
+                    "Free unused kits",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        List<Integer> banks = savFile.kitUsageIndex().reclaimableBanks(romImage);
+        if (banks.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "All kits are used by songs.",
+                    "Free unused kits",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        StringBuilder bankList = new StringBuilder();
+        for (int bank : banks) {
+            bankList.append(bankList.length() == 0 ? "" : ", ").append(bank);
+        }
+        int answer = JOptionPane.showConfirmDialog(this,
+                "No song in this .sav uses the kits in ROM banks " + bankList + ".\n"
+                        + "Free them? Songs in other .sav files may still need them.",
+                "Free unused kits",
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.WARNING_MESSAGE);
+        if (answer == JOptionPane.OK_OPTION) {
+            savFile.freeUnusedKits(romImage);
+        }
+    }
+
     private void updateRamUsageIndicator() {
         jRamUsageIndicator.setMaximum(savFile.totalBlockCount());
         jRamUsageIndicator.setValue(savFile.usedBlockCount());
@@ -125,6 +182,8 @@ public class SongManager extends JFrame implements ListSelectionListener {
             
             if (JFileChooser.APPROVE_OPTION == ret_val) {
                 String directory = fileChooser.getSelectedFile().getAbsolutePath();
+                List<Integer> exportSongs = new ArrayList<>();
+                List<File> exportFiles = new ArrayList<>();
 
                 for (int song : songs) {
                     String filename = savFile.getFileName(song).toLowerCase()
@@ -160,13 +219,73 @@ public class SongManager extends JFrame implements ListSelectionListener {
                             return;
                     }
                     if (savFile.getBlocksUsed(song) > 0) {
-                        savFile.exportSongToFile(song, path, romImage);
+                        exportSongs.add(song);
+                        exportFiles.add(f);
                     }
                 }
+                exportInBackground(exportSongs.stream().mapToInt(Integer::intValue).toArray(),
+                        exportFiles.toArray(new File[0]));
             }
         }
     }
 
+    private void exportInBackground(int[] songs, File[] files) {
+        final LSDSavFile savFileCopy;
+        try {
+            savFileCopy = savFile.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        final byte[] romImageCopy = romImage.clone();
+        ProgressMonitor progressMonitor = new ProgressMonitor(this, "Exporting songs...", null, 0, 100);
+        progressMonitor.setMillisToDecideToPopup(100);
+
+        SwingWorker<Map<File, IOException>, Void> worker = new SwingWorker<Map<File, IOException>, Void>() {
+            @Override
+            protected Map<File, IOException> doInBackground() throws Exception {
+                return new BatchSongExporter().export(savFileCopy, romImageCopy, songs, files,
+                        (done, total) -> setProgress(100 * done / total));
+            }
+
+            @Override
+            protected void done() {
+                progressMonitor.close();
+                if (isCancelled()) {
+                    return;
+                }
+                StringBuilder message = new StringBuilder();
+                try {
+                    for (Map.Entry<File, IOException> failure : get().entrySet()) {
+                        message.append(failure.getKey().getName()).append(": ")
+                                .append(failure.getValue().getMessage()).append('\n');
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    message.append("Export was interrupted.");
+                } catch (ExecutionException e) {
+                    // Failures outside a single song, e.g. running out of memory.
+                    e.getCause().printStackTrace();
+                    message.append(e.getCause());
+                }
+                if (message.length() > 0) {
+                    JOptionPane.showMessageDialog(SongManager.this,
+                            message.toString(),
+                            "Song export failed!",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                progressMonitor.setProgress((Integer) e.getNewValue());
+            }
+            if (progressMonitor.isCanceled()) {
+                worker.cancel(true);
+            }
+        });
+        worker.execute();
+    }
+
     public void addLsdSngButton_actionPerformed() {
         FileDialog fileDialog = new FileDialog(this,
                 "Load Songs",
@@ -4,11 +4,31 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
 
+import Document.KitUsageIndex;
+import Document.LSDSavFile;
+import Document.SavFileWriter;
+import Document.SavSnapshotStore;
+import Document.SavVerifier;
+import Document.SongFile;
+import songManager.BatchSongExporter;
+import songManager.SavLibraryIndex;
 import structures.LSDJFont;
 
 public class CommandLineFunctions {
@@ -224,4 +244,388 @@ public class CommandLineFunctions {
         }
     }
 
+    /**
+     * Expands arguments containing *, ?, [ or { as globs, e.g. "sets/*.sav" or "songs/**.lsdprj".
+     * Other arguments are returned as files.
+     */
+    public static List<File> expandGlobs(List<String> patterns) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String pattern : patterns) {
+            String normalized = pattern.replace(File.separatorChar, '/');
+            int globStart = indexOfAny(normalized, "*?[{");
+            if (globStart == -1) {
+                files.add(new File(pattern));
+                continue;
+            }
+            int baseEnd = normalized.lastIndexOf('/', globStart);
+            Path base = Paths.get(baseEnd == -1 ? "." : normalized.substring(0, baseEnd + 1));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + (baseEnd == -1 ? normalized : normalized.substring(baseEnd + 1)));
+            try (Stream<Path> paths = Files.walk(base)) {
+                paths.filter(Files::isRegularFile)
+                        .filter(path -> matcher.matches(base.relativize(path)))
+                        .sorted()
+                        .forEach(path -> files.add(path.normalize().toFile()));
+            }
+        }
+        return files;
+    }
+
+    private static int indexOfAny(String s, String chars) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (chars.indexOf(s.charAt(i)) != -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private interface SavCommand {
+        /**
+         * Runs the command on one .sav and returns its report.
+         */
+        String run(File savFile, LSDSavFile sav, SavFileWriter writer) throws Exception;
+    }
+
+    /**
+     * Runs command on all .sav files matching savPatterns, several at a time, and prints
+     * the reports in argument order.
+     *
+     * @return false if the command failed for any .sav
+     */
+    private static boolean forEachSav(List<String> savPatterns, SavCommand command) {
+        List<File> savFiles;
+        try {
+            savFiles = expandGlobs(savPatterns);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        if (savFiles.isEmpty()) {
+            System.err.println("No .sav files found.");
+            return false;
+        }
+        // Reports for failed commands are kept as exceptions.
+        List<Object> reports = savFiles.parallelStream().map(file -> {
+            try {
+                LSDSavFile sav = new LSDSavFile();
+                SavFileWriter writer = new SavFileWriter(file);
+                writer.load(sav);
+                return (Object) (file + ":\n" + command.run(file, sav, writer));
+            } catch (Exception e) {
+                return e;
+            }
+        }).collect(Collectors.toList());
+
+        boolean ok = true;
+        for (int i = 0; i < reports.size(); ++i) {
+            Object report = reports.get(i);
+            if (report instanceof Exception) {
+                System.err.println(savFiles.get(i) + ": " + ((Exception) report).getMessage());
+                ok = false;
+            } else {
+                System.out.print(report);
+            }
+        }
+        return ok;
+    }
+
+    private static byte[] readRom(String romFileName) throws IOException {
+        byte[] romImage = Files.readAllBytes(Paths.get(romFileName));
+        if (romImage.length != RomUtilities.BANK_SIZE * RomUtilities.BANK_COUNT) {
+            throw new IOException(romFileName + ": Not an LSDj ROM!");
+        }
+        return romImage;
+    }
+
+    public static boolean listSongs(List<String> savPatterns) {
+        return forEachSav(savPatterns, (file, sav, writer) -> {
+            StringBuilder report = new StringBuilder();
+            for (int song = 0; song < 0x20; ++song) {
+                int blocks = sav.getBlocksUsed(song);
+                if (blocks > 0) {
+                    report.append(String.format("%2d. %-8s.%s %3d blocks%n",
+                            song + 1, sav.getFileName(song), sav.version(song), blocks));
+                }
+            }
+            report.append(String.format("%d/%d blocks used%n", sav.usedBlockCount(), sav.totalBlockCount()));
+            return report.toString();
+        });
+    }
+
+    public static boolean validateSongs(List<String> savPatterns) {
+        return forEachSav(savPatterns, (file, sav, writer) -> {
+            List<SavVerifier.Finding> findings = SavVerifier.verify(sav);
+            StringBuilder report = new StringBuilder();
+            for (SavVerifier.Finding finding : findings) {
+                report.append(finding).append('\n');
+            }
+            if (SavVerifier.hasErrors(findings)) {
+                throw new IOException("Corrupted!\n" + report);
+            }
+            return report + "OK!\n";
+        });
+    }
+
+    public static boolean compactSongs(List<String> savPatterns) {
+        return forEachSav(savPatterns, (file, sav, writer) -> {
+            int freedBlocks = sav.compact(true);
+            writer.save(sav);
+            return String.format("%d blocks freed, %d/%d blocks used%n",
+                    freedBlocks, sav.usedBlockCount(), sav.totalBlockCount());
+        });
+    }
+
+    /**
+     * Exports all songs of each .sav to outDirectory/<.sav name>/.
+     */
+    public static boolean exportSongs(List<String> savPatterns, String romFileName, String outDirectory) {
+        byte[] romImage;
+        try {
+            romImage = readRom(romFileName);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        BatchSongExporter exporter = new BatchSongExporter();
+        return forEachSav(savPatterns, (file, sav, writer) -> {
+            File directory = new File(outDirectory, file.getName().replaceFirst("\\.sav$", ""));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            List<Integer> songs = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            for (int song = 0; song < 0x20; ++song) {
+                if (sav.getBlocksUsed(song) > 0) {
+                    songs.add(song);
+                    files.add(new File(directory,
+                            sav.getFileName(song).toLowerCase() + "-" + sav.version(song) + ".lsdprj"));
+                }
+            }
+            Map<File, IOException> failures = exporter.export(sav, romImage,
+                    songs.stream().mapToInt(Integer::intValue).toArray(), files.toArray(new File[0]), null);
+            if (!failures.isEmpty()) {
+                throw failures.values().iterator().next();
+            }
+            return String.format("%d songs exported to %s%n", songs.size(), directory);
+        });
+    }
+
+    /**
+     * Adds songs to one .sav and their kits to the ROM. Nothing is written if any song fails.
+     */
+    public static boolean addSongs(String savFileName, String romFileName, List<String> songPatterns) {
+        try {
+            byte[] romImage = readRom(romFileName);
+            byte[] originalRomImage = romImage.clone();
+            LSDSavFile sav = new LSDSavFile();
+            SavFileWriter writer = new SavFileWriter(new File(savFileName));
+            writer.load(sav);
+            for (File songFile : expandGlobs(songPatterns)) {
+                try {
+                    sav.addSong(SongFile.read(songFile), romImage);
+                } catch (LSDSavFile.AddSongException e) {
+                    throw new IOException(songFile + ": " + e.getMessage());
+                }
+                System.out.println("Added " + songFile);
+            }
+            // The ROM first, so that the .sav never refers to kits the ROM lacks.
+            if (!Arrays.equals(originalRomImage, romImage)) {
+                RomUtilities.fixChecksum(romImage);
+                SavFileWriter.writeAtomically(new File(romFileName), romImage);
+            }
+            writer.save(sav);
+            System.out.printf("OK! %d/%d blocks used%n", sav.usedBlockCount(), sav.totalBlockCount());
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Clears the given song slots, counted from 1 as in listSongs().
+     */
+    public static boolean removeSongs(String savFileName, List<String> slots) {
+        List<Integer> songs = new ArrayList<>();
+        for (String slot : slots) {
+            int song = -1;
+            try {
+                song = Integer.parseInt(slot) - 1;
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+            if (song < 0 || song >= 0x20) {
+                System.err.println("Slot must be between 1 and 32: " + slot);
+                return false;
+            }
+            songs.add(song);
+        }
+        try {
+            LSDSavFile sav = new LSDSavFile();
+            SavFileWriter writer = new SavFileWriter(new File(savFileName));
+            writer.load(sav);
+            for (int song : songs) {
+                sav.clearSong(song);
+            }
+            writer.save(sav);
+            System.out.println("OK!");
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Lists the kit banks of the ROM with the songs of the .sav that use them. With
+     * free set, clears the banks no song uses and writes the ROM.
+     */
+    public static boolean listKits(String romFileName, String savFileName, boolean free) {
+        try {
+            byte[] romImage = readRom(romFileName);
+            LSDSavFile sav = new LSDSavFile();
+            new SavFileWriter(new File(savFileName)).load(sav);
+            KitUsageIndex kits = sav.kitUsageIndex();
+            for (int bank = 0; bank < RomUtilities.BANK_COUNT; ++bank) {
+                if (!isRomBankAKit(bank, romImage)) {
+                    continue;
+                }
+                StringBuilder songs = new StringBuilder();
+                for (int song : kits.songsUsingBank(bank)) {
+                    songs.append(' ').append(sav.getFileName(song));
+                }
+                String name = new String(romImage, bank * RomUtilities.BANK_SIZE + 0x52, 6);
+                System.out.printf("%2d. %-6s%s%n", bank, name, songs.length() == 0 ? " unused" : songs);
+            }
+            List<Integer> unreadable = kits.unreadableSongs();
+            if (!unreadable.isEmpty()) {
+                StringBuilder songs = new StringBuilder();
+                for (int song : unreadable) {
+                    songs.append(' ').append(sav.getFileName(song));
+                }
+                System.err.println("Could not read the kits of corrupted songs:" + songs);
+                if (free) {
+                    System.err.println("Not freeing kits, since these songs may use them.");
+                    return false;
+                }
+            }
+            List<Integer> reclaimable = kits.reclaimableBanks(romImage);
+            if (free && !reclaimable.isEmpty()) {
+                sav.freeUnusedKits(romImage);
+                RomUtilities.fixChecksum(romImage);
+                SavFileWriter.writeAtomically(new File(romFileName), romImage);
+                System.out.printf("Freed %d kit banks%n", reclaimable.size());
+            } else {
+                System.out.printf("%d kit banks reclaimable%n", reclaimable.size());
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Creates or updates the song index for all .sav files below directory.
+     */
+    public static boolean indexSavs(String indexFileName, String directory) {
+        try {
+            File indexFile = new File(indexFileName);
+            SavLibraryIndex previous = indexFile.exists() ? SavLibraryIndex.read(indexFile) : null;
+            SavLibraryIndex index = SavLibraryIndex.scan(new File(directory), previous);
+            index.write(indexFile);
+            System.out.printf("OK! %d songs in %d .sav files%n", index.songs().size(), index.savCount());
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Prints the indexed songs matching query: a song name with optional ".version"
+     * in hex, or "kit:<bank>" for the songs using the kit in a ROM bank.
+     */
+    public static boolean findSongs(String indexFileName, String query) {
+        try {
+            SavLibraryIndex index = SavLibraryIndex.read(new File(indexFileName));
+            List<SavLibraryIndex.Song> songs;
+            if (query.toLowerCase().startsWith("kit:")) {
+                songs = index.usingKitBank(Integer.parseInt(query.substring(4)));
+            } else {
+                int dot = query.lastIndexOf('.');
+                songs = dot == -1
+                        ? index.find(query, -1)
+                        : index.find(query.substring(0, dot), Integer.parseInt(query.substring(dot + 1), 16));
+            }
+            for (SavLibraryIndex.Song song : songs) {
+                System.out.println(song);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        } catch (NumberFormatException e) {
+            System.err.println("Bad query: " + query);
+            return false;
+        }
+    }
+
+    /**
+     * Snapshots all .sav files matching savPatterns into the store, named after the
+     * .sav file and its modification time.
+     */
+    public static boolean snapshotSavs(String storeDirectory, List<String> savPatterns) {
+        try {
+            SavSnapshotStore store = SavSnapshotStore.open(new File(storeDirectory));
+            for (File file : expandGlobs(savPatterns)) {
+                LSDSavFile sav = new LSDSavFile();
+                sav.loadFromSav(file.getPath());
+                String name = file.getName().replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+                        + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(file.lastModified()));
+                int newBlocks = store.snapshot(sav, name);
+                System.out.printf("%s: %d new blocks%n", name, newBlocks);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    public static boolean restoreSav(String storeDirectory, String snapshot, String savFileName) {
+        try {
+            SavSnapshotStore.open(new File(storeDirectory)).restore(snapshot).saveAs(savFileName);
+            System.out.println("OK!");
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Lists snapshots, or the songs that changed between two snapshots.
+     */
+    public static boolean diffSnapshots(String storeDirectory, List<String> snapshots) {
+        try {
+            SavSnapshotStore store = SavSnapshotStore.open(new File(storeDirectory));
+            if (snapshots.size() != 2) {
+                for (String snapshot : store.snapshots()) {
+                    System.out.println(snapshot);
+                }
+                return true;
+            }
+            LSDSavFile to = store.restore(snapshots.get(1));
+            for (int song : store.changedSongs(snapshots.get(0), snapshots.get(1))) {
+                System.out.printf("%2d. %s%n", song + 1,
+                        to.getBlocksUsed(song) > 0 ? to.getFileName(song) + "." + to.version(song) : "(removed)");
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
 }
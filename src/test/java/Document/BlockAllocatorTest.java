@@ -0,0 +1,48 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class BlockAllocatorTest {
+    // Free runs: 0-1, 5-9, 20-22.
+    private static final int[] EXTENTS = { 0, 2, 5, 5, 20, 3 };
+
+    @Test
+    @DisplayName("Strategies pick the expected free blocks")
+    void allocate_strategies() {
+        Assertions.assertArrayEquals(new int[] { 0, 1, 5 }, BlockAllocator.FIRST_FIT.allocate(EXTENTS, 3));
+        Assertions.assertArrayEquals(new int[] { 20, 21, 22 }, BlockAllocator.BEST_FIT_CONTIGUOUS.allocate(EXTENTS, 3));
+        Assertions.assertArrayEquals(new int[] { 5, 6, 7 }, BlockAllocator.LARGEST_FREE_RUN.allocate(EXTENTS, 3));
+        Assertions.assertArrayEquals(new int[] { 5, 6, 7, 8, 9, 20 },
+                BlockAllocator.BEST_FIT_CONTIGUOUS.allocate(EXTENTS, 6));
+        Assertions.assertNull(BlockAllocator.FIRST_FIT.allocate(EXTENTS, 11));
+        Assertions.assertNull(BlockAllocator.LARGEST_FREE_RUN.allocate(EXTENTS, 11));
+        Assertions.assertNull(BlockAllocator.BEST_FIT_CONTIGUOUS.allocate(EXTENTS, 11));
+    }
+
+    @Test
+    @DisplayName("Songs added to a fragmented .sav go to the smallest hole they fit in")
+    void addSong_bestFit() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        String song = TestSavFiles.triangleWaves();
+        for (int i = 0; i < 4; ++i) {
+            savFile.addSongFromFile(song, null);
+        }
+        int blocksPerSong = savFile.getBlocksUsed(0);
+        savFile.clearSong(1);
+        savFile.addSongFromFile(song, null);
+        int[] chain = savFile.songBlockChain(1);
+        Assertions.assertEquals(blocksPerSong, chain.length);
+        for (int i = 0; i < chain.length; ++i) {
+            Assertions.assertEquals(blocksPerSong + i, chain[i]);
+        }
+        Assertions.assertTrue(savFile.isValid(1));
+
+        savFile.clearSong(1);
+        savFile.setBlockAllocator(BlockAllocator.LARGEST_FREE_RUN);
+        savFile.addSongFromFile(song, null);
+        Assertions.assertEquals(4 * blocksPerSong, savFile.songBlockChain(1)[0]);
+        Assertions.assertTrue(savFile.isValid(1));
+    }
+}
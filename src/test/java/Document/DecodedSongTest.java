@@ -0,0 +1,66 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+class DecodedSongTest {
+    @Test
+    @DisplayName("Views read the decoded song lazily and see later changes to the buffer")
+    void views_readBuffer() {
+        byte[] data = new byte[0x10 + SongDecoder.SONG_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(0x10);
+        DecodedSong song = new DecodedSong(buffer);
+        int base = 0x10;
+
+        DecodedSong.Chain chain = song.chain(3);
+        data[base + DecodedSong.CHAIN_PHRASES + 3 * 0x10 + 2] = 0x45;
+        data[base + DecodedSong.CHAIN_ALLOC] = 1 << 3;
+        data[base + DecodedSong.SONG_CHAINS + 5 * 4 + 1] = 3;
+        data[base + DecodedSong.INSTRUMENTS + 7 * 0x10] = 2;
+        data[base + DecodedSong.INSTRUMENTS + 7 * 0x10 + 2] = 0x41;
+        data[base + DecodedSong.INSTRUMENTS + 7 * 0x10 + 9] = 5;
+        data[base + DecodedSong.INSTRUMENT_NAMES + 7 * 5] = 65;
+        data[base + DecodedSong.PHRASE_ALLOC] = 1;
+        data[base + DecodedSong.PHRASE_INSTRUMENTS + 2] = 7;
+        data[base + DecodedSong.WAVES + 0x10] = (byte) 0xab;
+
+        Assertions.assertEquals(0x45, chain.phrase(2));
+        Assertions.assertEquals(3, song.songChain(5, 1));
+        Assertions.assertTrue(song.isChainAllocated(3));
+        Assertions.assertTrue(song.isPhraseAllocated(0));
+        Assertions.assertEquals(DecodedSong.Instrument.KIT, song.instrument(7).type());
+        Assertions.assertEquals(1, song.instrument(7).kit1());
+        Assertions.assertEquals("A", song.instrument(7).name());
+        Assertions.assertEquals((1L << 1) | (1L << 5), song.usedKitMask());
+        Assertions.assertEquals(1, song.instrumentUseCounts()[7]);
+        Assertions.assertEquals(0xa, song.wave(1).sample(0));
+        Assertions.assertEquals(0xb, song.wave(1).sample(1));
+
+        BitSet used = new BitSet();
+        used.set(0);
+        used.set(3);
+        Assertions.assertEquals(used, song.usedChains());
+        Assertions.assertTrue(song.unusedChains().isEmpty());
+    }
+
+    @Test
+    @DisplayName("Decoding a song gives the same kit usage as the raw byte scan")
+    void decode_matchesRawSong() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        savFile.addSongFromFile(TestSavFiles.triangleWaves(), null);
+
+        byte[] raw = new byte[SongDecoder.SONG_SIZE];
+        Assertions.assertEquals(SongDecoder.OK, savFile.decodeSong(0, new SongDecoder(), raw, 0));
+        DecodedSong song = DecodedSong.decode(savFile, 0);
+        Assertions.assertNotNull(song);
+        Assertions.assertEquals(LSDSavFile.usedKitMask(raw, 0), song.usedKitMask());
+        Assertions.assertEquals(raw[DecodedSong.WAVES] >> 4 & 0xf, song.wave(0).sample(0));
+        Assertions.assertEquals(raw[DecodedSong.GROOVES] & 0xff, song.groove(0).ticks(0));
+        Assertions.assertNull(DecodedSong.decode(savFile, 1));
+    }
+}
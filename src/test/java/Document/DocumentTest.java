@@ -7,6 +7,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 class DocumentTest {
 
@@ -49,4 +52,105 @@ class DocumentTest {
         Assertions.assertNull(document.savFile());
         Assertions.assertFalse(document.isSavDirty());
     }
-}
\ No newline at end of file
+
+    @Test
+    void setRomImage_tracksChangedBanks() {
+        Document document = new Document();
+        byte[] romImage = new byte[0x4000 * 64];
+        document.setRomImage(romImage);
+        Assertions.assertTrue(document.isRomDirty());
+        document.clearRomDirty();
+
+        document.setRomImage(romImage.clone());
+        Assertions.assertFalse(document.isRomDirty());
+        Assertions.assertTrue(document.dirtyRomBanks().isEmpty());
+
+        romImage[0x4000 * 3 + 5] = 1;
+        document.setRomImage(romImage);
+        Assertions.assertTrue(document.isRomDirty());
+        BitSet expected = new BitSet();
+        expected.set(3);
+        Assertions.assertEquals(expected, document.dirtyRomBanks());
+        Assertions.assertTrue(document.romImageEquals(romImage));
+    }
+
+    @Test
+    void undoRedo() {
+        Document document = new Document();
+        byte[] romImage = new byte[0x4000 * 64];
+        document.setRomImage(romImage);
+        Assertions.assertFalse(document.canUndo());
+
+        byte[] edited = romImage.clone();
+        edited[0x4000 * 2 + 7] = 1;
+        edited[0x4000 * 9] = 2;
+        LSDSavFile savFile = document.savFile();
+        savFile.workRam[0x8200] = 3;
+        document.beginTransaction();
+        document.setRomImage(edited);
+        document.setSavFile(savFile);
+        document.endTransaction();
+        Assertions.assertTrue(document.canUndo());
+
+        Assertions.assertTrue(document.undo());
+        Assertions.assertTrue(document.romImageEquals(romImage));
+        Assertions.assertEquals(0, document.savFile().workRam[0x8200]);
+        Assertions.assertFalse(document.canUndo());
+        Assertions.assertTrue(document.canRedo());
+
+        Assertions.assertTrue(document.redo());
+        Assertions.assertTrue(document.romImageEquals(edited));
+        Assertions.assertEquals(3, document.savFile().workRam[0x8200]);
+        Assertions.assertFalse(document.redo());
+
+        document.setUndoMemoryLimit(0);
+        Assertions.assertFalse(document.canUndo());
+    }
+
+    @Test
+    void changeEvents_coalescedAndFiltered() {
+        List<Runnable> queue = new ArrayList<>();
+        Document document = new Document(queue::add);
+        List<DocumentChange> kitChanges = new ArrayList<>();
+        List<DocumentChange> songChanges = new ArrayList<>();
+        document.subscribeChanges(kitChanges::add, DocumentChange.tagged(DocumentChange.Tag.KIT));
+        document.subscribeChanges(songChanges::add, DocumentChange.savBlockRange(0x41, 0x42));
+
+        byte[] romImage = new byte[0x4000 * 64];
+        document.setRomImage(romImage);
+        queue.remove(0).run();
+        Assertions.assertTrue(queue.isEmpty());
+        Assertions.assertEquals(1, kitChanges.size());
+        kitChanges.clear();
+
+        romImage[0x4000 * 8] = 0x60;
+        romImage[0x4000 * 8 + 1] = 0x40;
+        document.setRomImage(romImage);
+        romImage[0x4000 * 30 + 100] = 1;
+        document.setRomImage(romImage);
+        LSDSavFile savFile = document.savFile();
+        savFile.workRam[0x8200] = 1;
+        document.setSavFile(savFile);
+        Assertions.assertEquals(1, queue.size());
+        queue.remove(0).run();
+
+        Assertions.assertEquals(1, kitChanges.size());
+        DocumentChange change = kitChanges.get(0);
+        BitSet expected = new BitSet();
+        expected.set(8);
+        expected.set(30);
+        Assertions.assertEquals(expected, change.romBanks());
+        Assertions.assertTrue(change.has(DocumentChange.Tag.FONT));
+        Assertions.assertFalse(change.has(DocumentChange.Tag.PALETTE));
+        Assertions.assertTrue(change.savBlockChanged(0x41));
+        Assertions.assertEquals(1, songChanges.size());
+        byte[] kitHeader = new byte[2];
+        document.readRom(0x4000 * 8, kitHeader, 0, 2);
+        Assertions.assertArrayEquals(new byte[]{0x60, 0x40}, kitHeader);
+
+        document.undo();
+        queue.remove(0).run();
+        Assertions.assertEquals(2, songChanges.size());
+        Assertions.assertEquals(1, kitChanges.size());
+    }
+}
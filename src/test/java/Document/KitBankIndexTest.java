@@ -0,0 +1,27 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import utils.RomUtilities;
+
+import java.util.Arrays;
+import java.util.Random;
+
+class KitBankIndexTest {
+    @Test
+    void find_tracksChangedBanks() {
+        byte[] romImage = new byte[RomUtilities.BANK_SIZE * RomUtilities.BANK_COUNT];
+        new Random(3).nextBytes(romImage);
+        KitBankIndex index = new KitBankIndex(romImage);
+
+        byte[] kit = Arrays.copyOfRange(romImage, 5 * RomUtilities.BANK_SIZE, 6 * RomUtilities.BANK_SIZE);
+        Assertions.assertEquals(5, index.find(kit, 0));
+
+        kit[100] ^= 1;
+        Assertions.assertEquals(-1, index.find(kit, 0));
+
+        System.arraycopy(kit, 0, romImage, 40 * RomUtilities.BANK_SIZE, RomUtilities.BANK_SIZE);
+        index.bankChanged(40);
+        Assertions.assertEquals(40, index.find(kit, 0));
+    }
+}
@@ -0,0 +1,97 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+
+class KitUsageIndexTest {
+    private static final int BANK_SIZE = 0x4000;
+
+    /**
+     * Returns an .lsdsng whose instrument 0 uses kits 3 and 4, with the two kits attached.
+     */
+    private static byte[] songWithKits() {
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        song[DecodedSong.INSTRUMENTS] = 2;
+        song[DecodedSong.INSTRUMENTS + 2] = 3;
+        song[DecodedSong.INSTRUMENTS + 9] = 4;
+        byte[] blocks = new byte[0x20 * 0x200];
+        int blockCount = new SongEncoder().encode(song, 0, blocks, 0, 0);
+        byte[] songFile = new byte[9 + blockCount * 0x200 + 2 * BANK_SIZE];
+        System.arraycopy(blocks, 0, songFile, 9, blockCount * 0x200);
+        for (int kit = 0; kit < 2; ++kit) {
+            int offset = 9 + blockCount * 0x200 + kit * BANK_SIZE;
+            songFile[offset] = 0x60;
+            songFile[offset + 1] = 0x40;
+            songFile[offset + 2] = (byte) (kit + 1);
+        }
+        return songFile;
+    }
+
+    private static void putKit(byte[] romImage, int bank) {
+        romImage[bank * BANK_SIZE] = 0x60;
+        romImage[bank * BANK_SIZE + 1] = 0x40;
+    }
+
+    @Test
+    @DisplayName("Kit usage follows added and cleared songs, and unused kit banks can be freed")
+    void kitUsage_tracksSongs() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        byte[] romImage = new byte[BANK_SIZE * 64];
+        putKit(romImage, 8);
+        for (int bank = 9; bank < 11; ++bank) {
+            Arrays.fill(romImage, bank * BANK_SIZE, (bank + 1) * BANK_SIZE, (byte) -1);
+        }
+
+        KitUsageIndex index = savFile.kitUsageIndex();
+        Assertions.assertEquals(0, index.usedKitMask());
+        Assertions.assertEquals(Collections.singletonList(8), index.reclaimableBanks(romImage));
+
+        savFile.addSong(SongFile.read(Channels.newChannel(new ByteArrayInputStream(songWithKits())), "kits"), romImage);
+        savFile.addSong(SongFile.read(Channels.newChannel(new ByteArrayInputStream(songWithKits())), "kits"), romImage);
+        Assertions.assertSame(index, savFile.kitUsageIndex());
+        Assertions.assertEquals(Arrays.asList(0, 1), index.songsUsingBank(9));
+        Assertions.assertEquals(Arrays.asList(0, 1), index.songsUsingBank(10));
+        Assertions.assertEquals(Collections.singletonList(8), index.reclaimableBanks(romImage));
+
+        savFile.clearSong(0);
+        Assertions.assertEquals(Collections.singletonList(1), index.songsUsingBank(9));
+        savFile.clearSong(1);
+        Assertions.assertEquals(Arrays.asList(8, 9, 10), index.reclaimableBanks(romImage));
+        Assertions.assertEquals(Arrays.asList(8, 9, 10), savFile.freeUnusedKits(romImage));
+        for (int bank = 8; bank < 11; ++bank) {
+            Assertions.assertEquals(-1, romImage[bank * BANK_SIZE]);
+        }
+        Assertions.assertTrue(index.reclaimableBanks(romImage).isEmpty());
+    }
+
+    @Test
+    @DisplayName("No kit bank is reclaimable while a song cannot be decoded")
+    void reclaimableBanks_noneWithCorruptedSongs() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        byte[] romImage = new byte[BANK_SIZE * 64];
+        for (int bank = 9; bank < 11; ++bank) {
+            Arrays.fill(romImage, bank * BANK_SIZE, (bank + 1) * BANK_SIZE, (byte) -1);
+        }
+        savFile.addSong(SongFile.read(Channels.newChannel(new ByteArrayInputStream(songWithKits())), "kits"), romImage);
+        putKit(romImage, 8);
+
+        // Zeros without a block switch: the decoder fails before reaching the instruments.
+        int songStartPtr = savFile.songStartPtr(0);
+        Arrays.fill(savFile.workRam, songStartPtr, songStartPtr + 0x200, (byte) 0);
+        savFile.workRamReplaced();
+        KitUsageIndex index = savFile.kitUsageIndex();
+        Assertions.assertEquals(Collections.singletonList(0), index.unreadableSongs());
+        Assertions.assertTrue(index.reclaimableBanks(romImage).isEmpty());
+        Assertions.assertTrue(savFile.freeUnusedKits(romImage).isEmpty());
+
+        savFile.clearSong(0);
+        Assertions.assertTrue(index.unreadableSongs().isEmpty());
+        Assertions.assertEquals(Arrays.asList(8, 9, 10), index.reclaimableBanks(romImage));
+    }
+}
@@ -5,7 +5,11 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -39,6 +43,98 @@ class LSDSavFileTest {
         }
     }
 
+    @Test
+    @DisplayName("Block counts stay in sync with the FAT when adding and clearing songs")
+    void clearSong_freesBlocks() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File file = new File(Objects.requireNonNull(classLoader.getResource("triangle_waves.lsdprj")).getFile());
+        int totalBlocks = savFile.totalBlockCount();
+        savFile.addSongFromFile(file.getAbsolutePath(), null);
+        savFile.addSongFromFile(file.getAbsolutePath(), null);
+        int blocksPerSong = savFile.getBlocksUsed(0);
+        Assertions.assertTrue(blocksPerSong > 0);
+        Assertions.assertEquals(blocksPerSong, savFile.getBlocksUsed(1));
+        Assertions.assertEquals(totalBlocks - 2 * blocksPerSong, savFile.freeBlockCount());
+
+        savFile.clearSong(0);
+        Assertions.assertEquals(0, savFile.getBlocksUsed(0));
+        Assertions.assertEquals(totalBlocks - blocksPerSong, savFile.freeBlockCount());
+        Assertions.assertFalse(savFile.isValid(0));
+        Assertions.assertTrue(savFile.isValid(1));
+
+        // The freed slot and blocks are reused by the next song.
+        savFile.addSongFromFile(file.getAbsolutePath(), null);
+        Assertions.assertEquals(blocksPerSong, savFile.getBlocksUsed(0));
+        Assertions.assertTrue(savFile.isValid(0));
+        int fatBlocks = 0;
+        for (int block = 0; block < totalBlocks; ++block) {
+            if (savFile.workRam[savFile.blockAllocTableStartPtr + block] == 0) {
+                ++fatBlocks;
+            }
+        }
+        Assertions.assertEquals(blocksPerSong, fatBlocks);
+    }
+
+    @Test
+    @DisplayName("Compaction closes gaps left by removed songs")
+    void compact_closesGaps() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File file = new File(Objects.requireNonNull(classLoader.getResource("triangle_waves.lsdprj")).getFile());
+        for (int i = 0; i < 4; ++i) {
+            savFile.addSongFromFile(file.getAbsolutePath(), null);
+        }
+        int blocksPerSong = savFile.getBlocksUsed(0);
+        savFile.clearSong(0);
+        savFile.clearSong(2);
+        int freeBlocks = savFile.freeBlockCount();
+
+        Assertions.assertEquals(0, savFile.compact(false));
+        Assertions.assertEquals(freeBlocks, savFile.freeBlockCount());
+        for (int block = 0; block < 2 * blocksPerSong; ++block) {
+            int expectedSong = block < blocksPerSong ? 1 : 3;
+            Assertions.assertEquals(expectedSong, savFile.workRam[savFile.blockAllocTableStartPtr + block]);
+        }
+        Assertions.assertTrue(savFile.isValid(1));
+        Assertions.assertTrue(savFile.isValid(3));
+
+        Assertions.assertTrue(savFile.compact(true) >= 0);
+        Assertions.assertTrue(savFile.isValid(1));
+        Assertions.assertTrue(savFile.isValid(3));
+
+        // Freed blocks are contiguous, so a new song fits right after the compacted ones.
+        savFile.addSongFromFile(file.getAbsolutePath(), null);
+        Assertions.assertTrue(savFile.isValid(0));
+    }
+
+    @Test
+    @DisplayName("Compaction leaves songs with broken block switches where they are")
+    void compact_keepsBrokenSongs() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File file = new File(Objects.requireNonNull(classLoader.getResource("triangle_waves.lsdprj")).getFile());
+        for (int i = 0; i < 3; ++i) {
+            savFile.addSongFromFile(file.getAbsolutePath(), null);
+        }
+        int blocksPerSong = savFile.getBlocksUsed(0);
+        savFile.clearSong(0);
+        int[] brokenBlocks = savFile.songBlockChain(2);
+        int switchPtr = LSDSavFile.findNextBlockIdPtr(savFile.workRam,
+                savFile.blockStartPtr + brokenBlocks[0] * savFile.blockSize);
+        savFile.workRam[switchPtr] = 1;  // Points at a free block.
+        byte[] before = savFile.workRam.clone();
+
+        Assertions.assertEquals(0, savFile.compact(true));
+        for (int block : brokenBlocks) {
+            Assertions.assertEquals(2, savFile.workRam[savFile.blockAllocTableStartPtr + block]);
+            int blockPtr = savFile.blockStartPtr + block * savFile.blockSize;
+            Assertions.assertArrayEquals(Arrays.copyOfRange(before, blockPtr, blockPtr + savFile.blockSize),
+                    Arrays.copyOfRange(savFile.workRam, blockPtr, blockPtr + savFile.blockSize));
+        }
+        for (int block = 0; block < blocksPerSong; ++block) {
+            Assertions.assertEquals(1, savFile.workRam[savFile.blockAllocTableStartPtr + block]);
+        }
+        Assertions.assertTrue(savFile.isValid(1));
+    }
+
     @Test
     void testClone() throws CloneNotSupportedException {
         LSDSavFile savFile = new LSDSavFile();
@@ -54,4 +150,120 @@ class LSDSavFileTest {
         file.deleteOnExit();
         savFile.saveAs(file.getAbsolutePath());
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Songs are read from channels, and failed imports leave .sav and ROM untouched")
+    void addSong_isAtomic() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File file = new File(Objects.requireNonNull(classLoader.getResource("triangle_waves.lsdprj")).getFile());
+        byte[] song = Files.readAllBytes(file.toPath());
+
+        byte[] songWithKits = Arrays.copyOf(song, song.length + 2 * 0x4000);
+        songWithKits[song.length] = 0x60;
+        songWithKits[song.length + 1] = 0x40;
+        songWithKits[song.length + 0x4000] = 0x60;
+        songWithKits[song.length + 0x4001] = 0x41;
+        byte[] romImage = new byte[0x4000 * 64];
+        Arrays.fill(romImage, 0x4000 * 40, 0x4000 * 41, (byte) -1);  // One free kit bank.
+        byte[] romBefore = romImage.clone();
+        byte[] savBefore = savFile.workRam.clone();
+        try {
+            savFile.addSong(Channels.newChannel(new ByteArrayInputStream(songWithKits)), "kits", romImage);
+            Assertions.fail("addSong did not throw");
+        } catch (LSDSavFile.AddSongException e) {
+            Assertions.assertEquals("Not enough space for kits! Remove some and try again!", e.getMessage());
+        }
+        Assertions.assertArrayEquals(romBefore, romImage);
+        Assertions.assertArrayEquals(savBefore, savFile.workRam);
+
+        byte[] truncated = Arrays.copyOf(song, song.length - 0x200);
+        try {
+            savFile.addSong(Channels.newChannel(new ByteArrayInputStream(truncated)), "truncated", romImage);
+            Assertions.fail("addSong did not throw");
+        } catch (IOException e) {
+            Assertions.assertEquals("truncated: Song corrupted!", e.getMessage());
+        }
+        Assertions.assertArrayEquals(savBefore, savFile.workRam);
+
+        romImage[0x4000 * 41] = -1;
+        romImage[0x4000 * 41 + 1] = -1;
+        savFile.addSong(Channels.newChannel(new ByteArrayInputStream(songWithKits)), "kits", romImage);
+        Assertions.assertTrue(savFile.isValid(0));
+        Assertions.assertEquals(0x41, romImage[0x4000 * 41 + 1]);
+    }
+
+    @Test
+    @DisplayName("Kit instruments of added songs point at the banks their kits were placed in")
+    void addSong_remapsKits() throws Exception {
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        int instr3 = DecodedSong.INSTRUMENTS + 3 * 0x10;
+        int instr10 = DecodedSong.INSTRUMENTS + 10 * 0x10;
+        song[instr3] = 2;
+        song[instr3 + 2] = 0x45;
+        song[instr3 + 9] = 7;
+        song[instr10] = 2;
+        song[instr10 + 2] = 5;
+        song[instr10 + 9] = 5;
+        byte[] blocks = new byte[0x20 * 0x200];
+        int blockCount = new SongEncoder().encode(song, 0, blocks, 0, 0);
+
+        byte[] songFile = new byte[9 + blockCount * 0x200 + 2 * 0x4000];
+        System.arraycopy(blocks, 0, songFile, 9, blockCount * 0x200);
+        int kitsOffset = 9 + blockCount * 0x200;
+        for (int kit = 0; kit < 2; ++kit) {
+            songFile[kitsOffset + kit * 0x4000] = 0x60;
+            songFile[kitsOffset + kit * 0x4000 + 1] = 0x40;
+            songFile[kitsOffset + kit * 0x4000 + 2] = (byte) kit;
+        }
+        byte[] romImage = new byte[0x4000 * 64];
+        // Kit 5 of the song is already in bank 8, kit 7 goes to free bank 40.
+        System.arraycopy(songFile, kitsOffset, romImage, 0x4000 * 8, 0x4000);
+        romImage[0x4000 * 40] = -1;
+        romImage[0x4000 * 40 + 1] = -1;
+
+        savFile.addSong(Channels.newChannel(new ByteArrayInputStream(songFile)), "kits", romImage);
+        Assertions.assertEquals(1, romImage[0x4000 * 40 + 2]);
+        DecodedSong added = DecodedSong.decode(savFile, 0);
+        Assertions.assertNotNull(added);
+        Assertions.assertEquals(0x40, added.instrument(3).parameter(2));
+        Assertions.assertEquals(40 - 5 - 8, added.instrument(3).kit2());
+        Assertions.assertEquals(0, added.instrument(10).kit1());
+        Assertions.assertEquals(0, added.instrument(10).kit2());
+        Assertions.assertEquals((1L << 0) | (1L << 27), savFile.usedKits(0));
+        Assertions.assertEquals(1 + blockCount + 2, savFile.songFileBuffers(0, romImage).length);
+    }
+
+    @Test
+    @DisplayName("Identical kits of one added song share a free bank")
+    void addSong_placesIdenticalKitsOnce() throws Exception {
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        int instr3 = DecodedSong.INSTRUMENTS + 3 * 0x10;
+        int instr10 = DecodedSong.INSTRUMENTS + 10 * 0x10;
+        song[instr3] = 2;
+        song[instr3 + 2] = 7;
+        song[instr3 + 9] = 7;
+        song[instr10] = 2;
+        song[instr10 + 2] = 5;
+        song[instr10 + 9] = 5;
+        byte[] blocks = new byte[0x20 * 0x200];
+        int blockCount = new SongEncoder().encode(song, 0, blocks, 0, 0);
+
+        byte[] songFile = new byte[9 + blockCount * 0x200 + 2 * 0x4000];
+        System.arraycopy(blocks, 0, songFile, 9, blockCount * 0x200);
+        int kitsOffset = 9 + blockCount * 0x200;
+        for (int kit = 0; kit < 2; ++kit) {
+            songFile[kitsOffset + kit * 0x4000] = 0x60;
+            songFile[kitsOffset + kit * 0x4000 + 1] = 0x40;
+        }
+        byte[] romImage = new byte[0x4000 * 64];
+        romImage[0x4000 * 40] = -1;
+        romImage[0x4000 * 40 + 1] = -1;  // One free kit bank.
+
+        savFile.addSong(Channels.newChannel(new ByteArrayInputStream(songFile)), "kits", romImage);
+        Assertions.assertEquals(0x40, romImage[0x4000 * 40 + 1]);
+        DecodedSong added = DecodedSong.decode(savFile, 0);
+        Assertions.assertNotNull(added);
+        Assertions.assertEquals(40 - 5 - 8, added.instrument(3).kit1());
+        Assertions.assertEquals(40 - 5 - 8, added.instrument(10).kit1());
+    }
+}
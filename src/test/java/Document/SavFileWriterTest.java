@@ -0,0 +1,86 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+class SavFileWriterTest {
+    @Test
+    void save_writesChangedBlocksOnly() throws Exception {
+        File file = File.createTempFile("lsdpatcher", ".sav");
+        file.deleteOnExit();
+        LSDSavFile savFile = new LSDSavFile();
+        savFile.workRam[0x10000] = 1;  // Not a 64 kB image.
+        SavFileWriter writer = new SavFileWriter(file);
+        Assertions.assertEquals(0x100, writer.save(savFile));
+        Assertions.assertArrayEquals(savFile.workRam, Files.readAllBytes(file.toPath()));
+
+        Assertions.assertEquals(0, writer.save(savFile));
+
+        savFile.workRam[0x8200] = 5;
+        savFile.workRam[0x8201] = 6;
+        savFile.workRam[0x1ffff] = 7;
+        Assertions.assertEquals(2, writer.save(savFile));
+        Assertions.assertArrayEquals(savFile.workRam, Files.readAllBytes(file.toPath()));
+
+        LSDSavFile loaded = new LSDSavFile();
+        SavFileWriter otherWriter = new SavFileWriter(file);
+        otherWriter.load(loaded);
+        Assertions.assertTrue(savFile.equals(loaded));
+
+        // Someone else truncates the file; the next save must rewrite all of it.
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0x100);
+        }
+        Assertions.assertEquals(0x100, otherWriter.save(loaded));
+        Assertions.assertArrayEquals(savFile.workRam, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void save_detectsRewriteWithSameModificationTime() throws Exception {
+        File file = File.createTempFile("lsdpatcher", ".sav");
+        file.deleteOnExit();
+        LSDSavFile savFile = new LSDSavFile();
+        SavFileWriter writer = new SavFileWriter(file);
+        writer.save(savFile);
+
+        // Someone else rewrites the block the next save writes, within the time resolution.
+        long lastModified = file.lastModified();
+        byte[] external = savFile.workRam.clone();
+        external[0x8201] = 9;
+        Files.write(file.toPath(), external);
+        Assertions.assertTrue(file.setLastModified(lastModified));
+
+        savFile.workRam[0x8200] = 5;
+        Assertions.assertEquals(0x100, writer.save(savFile));
+        Assertions.assertArrayEquals(savFile.workRam, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void save_keepsFilesNamedLikeTemporaryFiles() throws Exception {
+        File file = File.createTempFile("lsdpatcher", ".sav");
+        file.deleteOnExit();
+        File userFile = new File(file.getPath() + ".tmp");
+        userFile.deleteOnExit();
+        Files.write(userFile.toPath(), new byte[]{1, 2, 3});
+
+        new SavFileWriter(file).save(new LSDSavFile());
+        Assertions.assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(userFile.toPath()));
+    }
+
+    @Test
+    void writeAtomically_replacesFileWithoutLeavingTemporaryFiles() throws Exception {
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+        File file = new File(directory, "lsdj.gb");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+
+        SavFileWriter.writeAtomically(file, new byte[]{4, 5});
+        Assertions.assertArrayEquals(new byte[]{4, 5}, Files.readAllBytes(file.toPath()));
+        Assertions.assertArrayEquals(new String[]{"lsdj.gb"}, directory.list());
+    }
+}
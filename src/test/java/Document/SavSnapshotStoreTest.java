@@ -0,0 +1,97 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+
+class SavSnapshotStoreTest {
+    @Test
+    void snapshot_storesChangedBlocksOnly() throws Exception {
+        String song = TestSavFiles.triangleWaves();
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+
+        LSDSavFile savFile = TestSavFiles.empty();
+        savFile.workRam[0x10000] = 1;
+        savFile.workRamReplaced();
+        savFile.addSongFromFile(song, null);
+        savFile.addSongFromFile(song, null);
+
+        SavSnapshotStore store = SavSnapshotStore.open(directory);
+        int firstBlocks = store.snapshot(savFile, "first");
+        Assertions.assertTrue(firstBlocks < 0x100);
+
+        savFile.clearSong(0);
+        int secondBlocks = store.snapshot(savFile, "second");
+        Assertions.assertTrue(secondBlocks <= 2, "Only the FAT and header block change");
+        // Adding the song back restores the first image, all blocks are known.
+        savFile.addSongFromFile(song, null);
+        Assertions.assertEquals(0, store.snapshot(savFile, "third"));
+
+        store = SavSnapshotStore.open(directory);
+        Assertions.assertEquals(firstBlocks + secondBlocks, store.blockCount());
+        Assertions.assertEquals(Arrays.asList("first", "second", "third"), store.snapshots());
+        Assertions.assertTrue(savFile.equals(store.restore("third")));
+
+        LSDSavFile first = store.restore("first");
+        Assertions.assertEquals(10, first.getBlocksUsed(0));
+        Assertions.assertEquals(10, first.getBlocksUsed(1));
+        Assertions.assertEquals(0, store.restore("second").getBlocksUsed(0));
+        Assertions.assertEquals(Collections.singletonList(0), store.changedSongs("first", "second"));
+        Assertions.assertTrue(store.changedSongs("first", "third").isEmpty());
+
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test
+    void open_hashesBlocksMissingFromIndex() throws Exception {
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+        LSDSavFile savFile = TestSavFiles.empty();
+        SavSnapshotStore store = SavSnapshotStore.open(directory);
+        int blocks = store.snapshot(savFile, "first");
+
+        // As if interrupted between writing the pack and the index.
+        File index = new File(directory, "blocks.index");
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        store = SavSnapshotStore.open(directory);
+        Assertions.assertEquals(blocks, store.blockCount());
+        Assertions.assertEquals(0, store.snapshot(savFile, "second"));
+        Assertions.assertEquals(blocks * 20L, index.length());
+
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test
+    void snapshot_seesBlocksAddedByOtherStores() throws Exception {
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+        LSDSavFile savFile = TestSavFiles.empty();
+        SavSnapshotStore store = SavSnapshotStore.open(directory);
+        SavSnapshotStore other = SavSnapshotStore.open(directory);
+        int blocks = store.snapshot(savFile, "x");
+        Assertions.assertEquals(0, other.snapshot(savFile, "x.tmp"));
+
+        savFile.workRam[0x8200] = 1;
+        Assertions.assertEquals(1, other.snapshot(savFile, "y"));
+        Assertions.assertEquals(Arrays.asList("x", "x.tmp", "y"), store.snapshots());
+        Assertions.assertTrue(savFile.equals(store.restore("y")));
+        Assertions.assertEquals(blocks + 1, SavSnapshotStore.open(directory).blockCount());
+
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            file.deleteOnExit();
+        }
+    }
+}
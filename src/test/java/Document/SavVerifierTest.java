@@ -0,0 +1,62 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class SavVerifierTest {
+    private static LSDSavFile savWithTwoSongs() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        Arrays.fill(savFile.workRam, savFile.fileNameStartPtr, savFile.fileVersionStartPtr + 0x20, (byte) 0);
+        savFile.addSongFromFile(TestSavFiles.triangleWaves(), null);
+        savFile.addSongFromFile(TestSavFiles.triangleWaves(), null);
+        return savFile;
+    }
+
+    private static List<SavVerifier.Kind> kinds(List<SavVerifier.Finding> findings) {
+        List<SavVerifier.Kind> kinds = new ArrayList<>();
+        for (SavVerifier.Finding finding : findings) {
+            kinds.add(finding.kind());
+        }
+        return kinds;
+    }
+
+    @Test
+    @DisplayName("Consistent .sav has no findings")
+    void verify_clean() throws Exception {
+        Assertions.assertTrue(SavVerifier.verify(savWithTwoSongs()).isEmpty());
+    }
+
+    @Test
+    @DisplayName("FAT, header and chain problems are reported per slot")
+    void verify_findsProblems() throws Exception {
+        LSDSavFile savFile = savWithTwoSongs();
+        int[] song0 = savFile.songBlockChain(0);
+        int[] song1 = savFile.songBlockChain(1);
+        int freeBlock = song1[song1.length - 1] + 1;
+
+        // Song 0 continues into song 1 after its first block.
+        int switchPtr = LSDSavFile.findNextBlockIdPtr(savFile.workRam,
+                savFile.blockStartPtr + song0[0] * savFile.blockSize);
+        savFile.workRam[switchPtr] = (byte) (song1[1] + 1);
+        savFile.workRam[savFile.blockAllocTableStartPtr + freeBlock] = 1;
+        savFile.workRam[savFile.blockAllocTableStartPtr + freeBlock + 1] = 0x40;
+        savFile.workRam[savFile.fileNameStartPtr + 5 * savFile.fileNameLength] = 65;
+
+        List<SavVerifier.Finding> findings = SavVerifier.verify(savFile);
+        Assertions.assertEquals(Arrays.asList(
+                SavVerifier.Kind.BAD_FAT_VALUE,
+                SavVerifier.Kind.CROSS_LINKED_BLOCK,
+                SavVerifier.Kind.UNREACHABLE_BLOCK,
+                SavVerifier.Kind.NAME_WITHOUT_SONG), kinds(findings));
+        Assertions.assertEquals(0, findings.get(1).slot());
+        Assertions.assertEquals(song1[1], findings.get(1).block());
+        Assertions.assertEquals(freeBlock, findings.get(2).block());
+        Assertions.assertEquals(5, findings.get(3).slot());
+        Assertions.assertTrue(SavVerifier.hasErrors(findings));
+    }
+}
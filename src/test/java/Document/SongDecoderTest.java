@@ -0,0 +1,82 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+class SongDecoderTest {
+    private static final int FIRST_BLOCK_PTR = SongDecoder.BLOCK_BASE_PTR + SongDecoder.BLOCK_SIZE;
+
+    private static byte[] emptyWorkRam() {
+        return new byte[0x20000];
+    }
+
+    // Writes runs of 0x80 times 0x11.
+    private static int writeRuns(byte[] workRam, int ptr, int runs) {
+        for (int i = 0; i < runs; ++i) {
+            workRam[ptr++] = (byte) 0xc0;
+            workRam[ptr++] = 0x11;
+            workRam[ptr++] = (byte) 0x80;
+        }
+        return ptr;
+    }
+
+    @Test
+    void decode_runsAcrossBlocks() {
+        byte[] workRam = emptyWorkRam();
+        // 100 runs in block 1, then switch to block 3 for the remaining 156 runs.
+        int ptr = writeRuns(workRam, FIRST_BLOCK_PTR, 100);
+        workRam[ptr++] = (byte) 0xe0;
+        workRam[ptr] = 3;
+        ptr = writeRuns(workRam, SongDecoder.BLOCK_BASE_PTR + 3 * SongDecoder.BLOCK_SIZE, 156);
+        workRam[ptr++] = (byte) 0xe0;
+        workRam[ptr] = (byte) 0xff;
+
+        SongDecoder decoder = new SongDecoder();
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        Assertions.assertEquals(SongDecoder.OK, decoder.decode(workRam, FIRST_BLOCK_PTR, song, 0));
+        for (byte b : song) {
+            Assertions.assertEquals(0x11, b);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SongDecoder.SONG_SIZE);
+        Assertions.assertEquals(SongDecoder.OK, decoder.decode(workRam, FIRST_BLOCK_PTR, buffer));
+        Assertions.assertEquals(SongDecoder.SONG_SIZE, buffer.position());
+        Assertions.assertEquals(0x11, buffer.get(SongDecoder.SONG_SIZE - 1));
+
+        int[] visited = new int[1];
+        Assertions.assertEquals(SongDecoder.OK, decoder.visit(workRam, FIRST_BLOCK_PTR,
+                (songPos, value, srcPtr) -> {
+                    Assertions.assertEquals(visited[0]++, songPos);
+                    Assertions.assertEquals(-1, srcPtr);
+                }));
+        Assertions.assertEquals(SongDecoder.SONG_SIZE, visited[0]);
+    }
+
+    @Test
+    void decode_reportsErrors() {
+        SongDecoder decoder = new SongDecoder();
+        byte[] workRam = emptyWorkRam();
+
+        int ptr = writeRuns(workRam, FIRST_BLOCK_PTR, 10);
+        workRam[ptr++] = (byte) 0xe0;
+        workRam[ptr] = (byte) 0xff;
+        Assertions.assertEquals(SongDecoder.ERROR_TOO_SHORT, decoder.validate(workRam, FIRST_BLOCK_PTR));
+        Assertions.assertEquals(10 * 0x80, decoder.decodedLength());
+
+        // Block switching to itself must not hang.
+        workRam[FIRST_BLOCK_PTR] = (byte) 0xe0;
+        workRam[FIRST_BLOCK_PTR + 1] = 1;
+        Assertions.assertEquals(SongDecoder.ERROR_BAD_BLOCK_SWITCH, decoder.validate(workRam, FIRST_BLOCK_PTR));
+
+        // Plain literals until end of work RAM.
+        Assertions.assertEquals(SongDecoder.ERROR_TOO_LONG, decoder.validate(workRam, 0));
+        Assertions.assertEquals(SongDecoder.ERROR_SOURCE_OUT_OF_BOUNDS,
+                decoder.validate(workRam, workRam.length - 0x10));
+        Assertions.assertEquals(SongDecoder.ERROR_SOURCE_OUT_OF_BOUNDS, decoder.validate(workRam, -1));
+
+        Assertions.assertEquals(SongDecoder.ERROR_DESTINATION_TOO_SMALL,
+                decoder.decode(workRam, FIRST_BLOCK_PTR, new byte[0x100], 0));
+    }
+}
@@ -0,0 +1,87 @@
+package Document;
+
+/**
+ * Measures SongEncoder throughput and compression ratio against the blocks
+ * songs currently occupy. Not run as part of the test suite.
+ * <p>
+ * Usage: SongEncoderBenchmark [sav files...]
+ * Without arguments, a .sav filled with the bundled test song is used.
+ */
+public class SongEncoderBenchmark {
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            benchmark("triangle_waves.lsdprj x 19", testSav());
+        }
+        for (String path : args) {
+            LSDSavFile savFile = new LSDSavFile();
+            savFile.loadFromSav(path);
+            benchmark(path, savFile);
+        }
+    }
+
+    private static LSDSavFile testSav() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        String song = TestSavFiles.triangleWaves();
+        try {
+            while (true) {
+                savFile.addSongFromFile(song, null);
+            }
+        } catch (LSDSavFile.AddSongException ignored) {
+            // Full.
+        }
+        return savFile;
+    }
+
+    private static void benchmark(String name, LSDSavFile savFile) {
+        SongDecoder decoder = new SongDecoder();
+        SongEncoder encoder = new SongEncoder();
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        byte[] blocks = new byte[SongDecoder.MAX_BLOCK_ID * SongDecoder.BLOCK_SIZE];
+
+        System.out.println(name);
+        int songs = 0;
+        int originalBlocks = 0;
+        int encodedBlocks = 0;
+        long decodedBytes = 0;
+        long nanos = 0;
+        for (int slot = 0; slot < 0x20; ++slot) {
+            if (savFile.getBlocksUsed(slot) == 0 || savFile.decodeSong(slot, decoder, song, 0) != SongDecoder.OK) {
+                continue;
+            }
+            // Warm up, then measure.
+            for (int i = 0; i < ITERATIONS; ++i) {
+                encoder.encode(song, 0, blocks, 0, 0);
+            }
+            long start = System.nanoTime();
+            int blockCount = 0;
+            for (int i = 0; i < ITERATIONS; ++i) {
+                blockCount = encoder.encode(song, 0, blocks, 0, 0);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("  %2d. %-8s %3d -> %3d blocks, %7.1f MB/s%n",
+                    slot + 1,
+                    savFile.getFileName(slot),
+                    savFile.getBlocksUsed(slot),
+                    blockCount,
+                    (double) SongDecoder.SONG_SIZE * ITERATIONS / elapsed * 1e9 / (1 << 20));
+            ++songs;
+            originalBlocks += savFile.getBlocksUsed(slot);
+            encodedBlocks += blockCount;
+            decodedBytes += (long) SongDecoder.SONG_SIZE * ITERATIONS;
+            nanos += elapsed;
+        }
+        if (nanos == 0) {
+            System.out.println("  No valid songs.");
+            return;
+        }
+        System.out.printf("  Total: %d -> %d blocks (%.1f%%), %.1f MB/s, %.1f:1 compression%n",
+                originalBlocks,
+                encodedBlocks,
+                100.0 * encodedBlocks / originalBlocks,
+                (double) decodedBytes / nanos * 1e9 / (1 << 20),
+                (double) songs * SongDecoder.SONG_SIZE / (encodedBlocks * SongDecoder.BLOCK_SIZE));
+    }
+}
@@ -0,0 +1,54 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+class SongEncoderTest {
+    private static final int FIRST_BLOCK_PTR = SongDecoder.BLOCK_BASE_PTR + SongDecoder.BLOCK_SIZE;
+
+    private static byte[] roundTrip(byte[] song) {
+        byte[] workRam = new byte[0x20000];
+        int blocks = new SongEncoder().encode(song, 0, workRam, FIRST_BLOCK_PTR, 0);
+        Assertions.assertTrue(blocks > 0);
+        byte[] decoded = new byte[SongDecoder.SONG_SIZE];
+        Assertions.assertEquals(SongDecoder.OK, new SongDecoder().decode(workRam, FIRST_BLOCK_PTR, decoded, 0));
+        return decoded;
+    }
+
+    @Test
+    void encode_roundTripsSong() throws Exception {
+        LSDSavFile savFile = TestSavFiles.empty();
+        savFile.addSongFromFile(TestSavFiles.triangleWaves(), null);
+
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        Assertions.assertEquals(SongDecoder.OK, savFile.decodeSong(0, new SongDecoder(), song, 0));
+        Assertions.assertArrayEquals(song, roundTrip(song));
+        Assertions.assertTrue(new SongEncoder().encodedBlockCount(song, 0) <= savFile.getBlocksUsed(0));
+    }
+
+    @Test
+    void encode_roundTripsEscapesAndNoise() {
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        new Random(1).nextBytes(song);
+        Arrays.fill(song, 0x100, 0x400, (byte) 0xc0);
+        Arrays.fill(song, 0x400, 0x500, (byte) 0xe0);
+        for (int i = 0x6000; i < 0x7000; i += 16) {
+            System.arraycopy(SongDecoder.DEFAULT_WAVE, 0, song, i, 16);
+        }
+        for (int i = 0x3080; i < 0x3480; i += 16) {
+            System.arraycopy(SongDecoder.DEFAULT_INSTRUMENT, 0, song, i, 16);
+        }
+        Assertions.assertArrayEquals(song, roundTrip(song));
+    }
+
+    @Test
+    void encode_failsWhenOutOfBlocks() {
+        byte[] song = new byte[SongDecoder.SONG_SIZE];
+        new Random(2).nextBytes(song);
+        byte[] dst = new byte[SongDecoder.BLOCK_SIZE * 4];
+        Assertions.assertEquals(-1, new SongEncoder().encode(song, 0, dst, 0, 0));
+    }
+}
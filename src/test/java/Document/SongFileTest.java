@@ -0,0 +1,30 @@
+package Document;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Objects;
+
+class SongFileTest {
+    @Test
+    void read_acceptsFilesUpToMaxSize() throws Exception {
+        File file = new File(Objects.requireNonNull(
+                getClass().getClassLoader().getResource("triangle_waves.lsdprj")).getFile());
+        byte[] song = Files.readAllBytes(file.toPath());
+
+        byte[] largest = Arrays.copyOf(song, SongFile.MAX_SIZE);
+        SongFile songFile = SongFile.read(Channels.newChannel(new ByteArrayInputStream(largest)), "largest");
+        Assertions.assertEquals(SongFile.MAX_SIZE, songFile.data().length);
+
+        byte[] tooLarge = Arrays.copyOf(song, SongFile.MAX_SIZE + 1);
+        IOException e = Assertions.assertThrows(IOException.class,
+                () -> SongFile.read(Channels.newChannel(new ByteArrayInputStream(tooLarge)), "tooLarge"));
+        Assertions.assertEquals("tooLarge: File too large!", e.getMessage());
+    }
+}
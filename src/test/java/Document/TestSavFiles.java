@@ -0,0 +1,28 @@
+package Document;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * .sav fixtures shared by tests, also usable outside this package, which can't reach workRam.
+ */
+public class TestSavFiles {
+    /**
+     * Returns a .sav without songs.
+     */
+    public static LSDSavFile empty() {
+        LSDSavFile savFile = new LSDSavFile();
+        Arrays.fill(savFile.workRam, (byte) -1); // Resets block allocation table.
+        savFile.workRam[0] = 0; // Satisfies 64 kb SRAM check.
+        return savFile;
+    }
+
+    /**
+     * Returns the path of the triangle_waves.lsdprj test song.
+     */
+    public static String triangleWaves() {
+        return new File(Objects.requireNonNull(
+                TestSavFiles.class.getClassLoader().getResource("triangle_waves.lsdprj")).getFile()).getAbsolutePath();
+    }
+}
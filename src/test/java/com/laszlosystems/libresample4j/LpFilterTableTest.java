@@ -0,0 +1,33 @@
+package com.laszlosystems.libresample4j;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class LpFilterTableTest {
+    @Test
+    @DisplayName("Tables are shared per quality, roll-off and Beta")
+    void get_shared() {
+        LpFilterTable table = LpFilterTable.get(true, 0.99, 6);
+        Assertions.assertSame(table, LpFilterTable.get(true, 0.99, 6));
+        Assertions.assertNotSame(table, LpFilterTable.get(false, 0.99, 6));
+        Assertions.assertNotSame(table, LpFilterTable.get(true, 0.99, 7));
+        Assertions.assertEquals(Resampler.Npc * 17, table.Nwing);
+    }
+
+    @Test
+    @DisplayName("Sessions sharing a table resample independently")
+    void resampler_sharesTable() {
+        float[] in = new float[1000];
+        for (int i = 0; i < in.length; ++i) {
+            in[i] = (float) Math.sin(i * 0.1);
+        }
+        float[] out1 = new float[in.length / 2 + 1];
+        float[] out2 = new float[out1.length];
+        Resampler first = new Resampler(true, 0.5, 0.5);
+        Resampler second = new Resampler(true, 0.5, 0.5);
+        first.process(0.5, in, 0, in.length, true, out1, 0, out1.length);
+        second.process(0.5, in, 0, in.length, true, out2, 0, out2.length);
+        Assertions.assertArrayEquals(out1, out2);
+    }
+}
@@ -0,0 +1,108 @@
+package com.laszlosystems.libresample4j;
+
+/**
+ * Compares PolyphaseResampler against Resampler in throughput and stopband
+ * attenuation for the rate pairs the kit editor uses. Not run as part of the test suite.
+ * <p>
+ * Usage: PolyphaseResamplerBenchmark
+ */
+public class PolyphaseResamplerBenchmark {
+    private static final int ITERATIONS = 20;
+    private static final double[] IN_RATES = {22050, 44100, 48000, 96000};
+    private static final double[] OUT_RATES = {11468, 5734, 11468 * Math.pow(2, 1 / 12.0)};
+
+    public static void main(String[] args) {
+        System.out.println("Stopband gain in dB, worst / mean, of tones above 0.6 times the output rate.");
+        System.out.println("  in Hz   out Hz   Resampler   polyphase  speedup   Resampler stopband   polyphase stopband");
+        for (double inRate : IN_RATES) {
+            for (double outRate : OUT_RATES) {
+                benchmark(inRate, outRate);
+            }
+        }
+    }
+
+    private static float[] sine(double frequency, double sampleRate, int length) {
+        float[] samples = new float[length];
+        for (int i = 0; i < length; ++i) {
+            samples[i] = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return samples;
+    }
+
+    private static int resample(double factor, float[] in, float[] out) {
+        Resampler resampler = new Resampler(true, factor, factor);
+        return resampler.process(factor, in, 0, in.length, true, out, 0, out.length).outputSamplesGenerated;
+    }
+
+    private static int resamplePolyphase(double factor, float[] in, float[] out) {
+        return PolyphaseResampler.forFactor(factor).process(in, 0, in.length, out, 0);
+    }
+
+    private static void benchmark(double inRate, double outRate) {
+        double factor = outRate / inRate;
+        if (PolyphaseResampler.forFactor(factor) == null) {
+            System.out.printf("%7.0f %8.0f   no polyphase filter%n", inRate, outRate);
+            return;
+        }
+        // One second of a short drum hit's worth of signal.
+        float[] in = sine(440, inRate, (int) inRate);
+        float[] out = new float[(int) (in.length * factor + 2)];
+
+        // Warm up, then measure.
+        for (int i = 0; i < ITERATIONS; ++i) {
+            resample(factor, in, out);
+            resamplePolyphase(factor, in, out);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            resample(factor, in, out);
+        }
+        long resamplerNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            resamplePolyphase(factor, in, out);
+        }
+        long polyphaseNanos = System.nanoTime() - start;
+
+        double[] resamplerStopband = stopband(inRate, outRate, false);
+        double[] polyphaseStopband = stopband(inRate, outRate, true);
+        System.out.printf("%7.0f %8.0f %8.2f ms %8.2f ms %7.1fx %12.1f / %.1f %13.1f / %.1f%n",
+                inRate,
+                outRate,
+                resamplerNanos / 1e6 / ITERATIONS,
+                polyphaseNanos / 1e6 / ITERATIONS,
+                (double) resamplerNanos / polyphaseNanos,
+                resamplerStopband[0], resamplerStopband[1],
+                polyphaseStopband[0], polyphaseStopband[1]);
+    }
+
+    /**
+     * Returns the gain in dB of the loudest tone and the mean gain of all tones between
+     * 0.6 times the output rate, where the transition band of the default filter ends,
+     * and the input Nyquist frequency.
+     */
+    private static double[] stopband(double inRate, double outRate, boolean polyphase) {
+        double factor = outRate / inRate;
+        double worst = 0;
+        double total = 0;
+        int tones = 0;
+        for (double frequency = 0.6 * outRate; frequency < 0.475 * inRate; frequency += 0.05 * outRate) {
+            float[] in = sine(frequency, inRate, (int) inRate / 4);
+            float[] out = new float[(int) (in.length * factor + 2)];
+            int length = polyphase ? resamplePolyphase(factor, in, out) : resample(factor, in, out);
+            // Skips the filter's edges.
+            double sum = 0;
+            int count = 0;
+            for (int i = length / 4; i < length * 3 / 4; ++i) {
+                sum += out[i] * out[i];
+                ++count;
+            }
+            // Power relative to the input tone's.
+            double gain = sum / count / 0.125;
+            worst = Math.max(worst, gain);
+            total += gain;
+            ++tones;
+        }
+        return new double[]{10 * Math.log10(worst), 10 * Math.log10(total / tones)};
+    }
+}
@@ -0,0 +1,79 @@
+package com.laszlosystems.libresample4j;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+class PolyphaseResamplerTest {
+    private static float[] sine(double frequency, double sampleRate, int length) {
+        float[] samples = new float[length];
+        for (int i = 0; i < length; ++i) {
+            samples[i] = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return samples;
+    }
+
+    @Test
+    @DisplayName("Factors are approximated by continued fraction convergents")
+    void fraction() {
+        Assertions.assertArrayEquals(new int[]{1, 2}, PolyphaseResampler.fraction(0.5));
+        Assertions.assertArrayEquals(new int[]{640, 147}, PolyphaseResampler.fraction(192000 / 44100.0));
+        // 2867/11025 within 1e-5.
+        Assertions.assertArrayEquals(new int[]{110, 423}, PolyphaseResampler.fraction(11468 / 44100.0));
+        double semitoneUp = 11468 * Math.pow(2, -1 / 12.0) / 48000;
+        int[] fraction = PolyphaseResampler.fraction(semitoneUp);
+        Assertions.assertNotNull(fraction);
+        Assertions.assertEquals(semitoneUp, (double) fraction[0] / fraction[1], semitoneUp * PolyphaseResampler.MAX_FACTOR_ERROR);
+        Assertions.assertNull(PolyphaseResampler.fraction(5000.5));
+    }
+
+    @Test
+    @DisplayName("Output matches the arbitrary ratio resampler in the passband")
+    void process_matchesResampler() {
+        // Exact fractions, so that the phases of both outputs do not drift apart.
+        for (double factor : new double[]{11025 / 44100.0, 2}) {
+            // Spans several chunks.
+            float[] in = sine(1000, 44100, 3 * PolyphaseResampler.CHUNK_SIZE + 123);
+            PolyphaseResampler polyphase = PolyphaseResampler.forFactor(factor);
+            Assertions.assertNotNull(polyphase);
+            float[] expected = new float[(int) (in.length * factor + 1)];
+            int expectedLength = new Resampler(true, factor, factor)
+                    .process(factor, in, 0, in.length, true, expected, 0, expected.length).outputSamplesGenerated;
+            float[] out = new float[polyphase.getOutputLength(in.length)];
+            Assertions.assertEquals(expectedLength, polyphase.process(in, 0, in.length, out, 0));
+            for (int i = 0; i < out.length; ++i) {
+                Assertions.assertEquals(expected[i], out[i], 2e-3, "sample " + i);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Output stops when the output buffer is full")
+    void process_limitedOutput() {
+        float[] in = sine(1000, 44100, 2 * PolyphaseResampler.CHUNK_SIZE);
+        PolyphaseResampler polyphase = PolyphaseResampler.forFactor(0.5);
+        Assertions.assertNotNull(polyphase);
+        float[] full = new float[polyphase.getOutputLength(in.length)];
+        polyphase.process(in, 0, in.length, full, 0);
+        float[] partial = new float[1000];
+        Assertions.assertEquals(partial.length, polyphase.process(in, 0, in.length, partial, 0));
+        for (int i = 0; i < partial.length; ++i) {
+            Assertions.assertEquals(full[i], partial[i]);
+        }
+    }
+
+    @Test
+    @DisplayName("Frequencies above the output Nyquist frequency are attenuated")
+    void process_attenuatesStopband() {
+        double factor = 5734 / 44100.0;
+        float[] in = sine(4000, 44100, 44100);
+        PolyphaseResampler polyphase = PolyphaseResampler.forFactor(factor);
+        Assertions.assertNotNull(polyphase);
+        float[] out = new float[polyphase.getOutputLength(in.length)];
+        polyphase.process(in, 0, in.length, out, 0);
+        // Skips the filter's edges.
+        for (int i = 100; i < out.length - 100; ++i) {
+            Assertions.assertEquals(0, out[i], 1e-3, "sample " + i);
+        }
+    }
+}
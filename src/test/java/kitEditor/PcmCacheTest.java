@@ -0,0 +1,73 @@
+package kitEditor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class PcmCacheTest {
+    private static File sine() {
+        URL url = PcmCacheTest.class.getClassLoader().getResource("sine1s44khz.wav");
+        assert url != null;
+        return new File(url.getFile());
+    }
+
+    private static PcmCache.Source source(int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; ++i) {
+            samples[i] = (short) (i % 2 == 0 ? 1000 : -1000);
+        }
+        return new PcmCache.Source(samples, 44100);
+    }
+
+    @Test
+    @DisplayName("Files are decoded once per output rate change")
+    void samples_decodesOnce() throws Exception {
+        PcmCache cache = new PcmCache(1 << 20, 1 << 20);
+        AtomicInteger decodes = new AtomicInteger();
+        PcmCache.Decoder decoder = file -> {
+            decodes.incrementAndGet();
+            return source(4410);
+        };
+
+        short[] normal = cache.samples(sine(), 11468, decoder);
+        Assertions.assertSame(normal, cache.samples(sine(), 11468, decoder));
+        short[] halfSpeed = cache.samples(sine(), 5734, decoder);
+        Assertions.assertNotEquals(normal.length, halfSpeed.length);
+        Assertions.assertSame(normal, cache.samples(sine(), 11468, decoder));
+        Assertions.assertEquals(1, decodes.get());
+    }
+
+    @Test
+    @DisplayName("Least recently used entries are evicted to stay within the byte limit")
+    void samples_evicts() throws Exception {
+        // Room for one decoded source only.
+        PcmCache cache = new PcmCache(3 * 4410, 1 << 20);
+        AtomicInteger decodes = new AtomicInteger();
+        PcmCache.Decoder decoder = file -> {
+            decodes.incrementAndGet();
+            return source(4410);
+        };
+        File other = File.createTempFile("pcm", ".wav");
+        other.deleteOnExit();
+
+        cache.samples(sine(), 11468, decoder);
+        cache.samples(other, 11468, decoder);
+        cache.samples(sine(), 5734, decoder);
+        Assertions.assertEquals(3, decodes.get());
+        cache.samples(other, 11468, decoder);
+        Assertions.assertEquals(3, decodes.get());
+    }
+
+    @Test
+    @DisplayName("Cached samples match uncached decoding")
+    void createFromWav_cached() throws Exception {
+        Sample first = Sample.createFromWav(sine(), false, false, 0, 0, 0);
+        Sample second = Sample.createFromWav(sine(), false, false, 0, 0, 0);
+        Assertions.assertArrayEquals(first.workSampleData(), second.workSampleData());
+        Assertions.assertEquals(11467, second.lengthInSamples());
+    }
+}
@@ -0,0 +1,120 @@
+package kitEditor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SampleProcessorTest {
+    @Test
+    @DisplayName("Only the latest job per key is published")
+    void submit_supersedesEarlierJobs() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        BlockingQueue<Runnable> publications = new LinkedBlockingQueue<>();
+        SampleProcessor processor = new SampleProcessor(executor, publications::add);
+        List<Integer> published = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        processor.submit(0, () -> {
+            started.countDown();
+            release.await();
+            return 1;
+        }, published::add, Assertions::fail);
+        started.await();
+        // Queued behind the running job, and superseded before it runs.
+        processor.submit(0, () -> 2, published::add, Assertions::fail);
+        processor.submit(0, () -> 3, published::add, Assertions::fail);
+        processor.submit(1, () -> 10, published::add, Assertions::fail);
+        release.countDown();
+
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (Runnable publication : publications) {
+            publication.run();
+        }
+        Assertions.assertEquals(2, published.size());
+        Assertions.assertTrue(published.contains(3));
+        Assertions.assertTrue(published.contains(10));
+    }
+
+    @Test
+    @DisplayName("Job exceptions are published to the error handler")
+    void submit_publishesErrors() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        BlockingQueue<Runnable> publications = new LinkedBlockingQueue<>();
+        SampleProcessor processor = new SampleProcessor(executor, publications::add);
+        List<Exception> errors = new ArrayList<>();
+
+        processor.submit("key", () -> {
+            throw new IOException("broken");
+        }, result -> Assertions.fail("no result expected"), errors::add);
+        publications.take().run();
+        Assertions.assertEquals(1, errors.size());
+        Assertions.assertEquals("broken", errors.get(0).getMessage());
+        processor.shutdown();
+    }
+
+    @Test
+    @DisplayName("Jobs with the same key run one at a time, skipping superseded ones")
+    void submit_runsJobsPerKeyInTurn() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SampleProcessor processor = new SampleProcessor(executor, Runnable::run);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 10; ++i) {
+            final int value = i;
+            processor.submit(0, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                runs.incrementAndGet();
+                started.countDown();
+                release.await();
+                running.decrementAndGet();
+                return value;
+            }, published::add, Assertions::fail);
+            started.await();
+        }
+        release.countDown();
+
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, maxRunning.get());
+        Assertions.assertEquals(2, runs.get());
+        Assertions.assertEquals(Collections.singletonList(9), published);
+    }
+
+    @Test
+    @DisplayName("Draining waits for jobs and publishes on the calling thread")
+    void drain_publishesPendingResults() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // Publications posted to this executor are never run.
+        SampleProcessor processor = new SampleProcessor(executor, publication -> {
+        });
+        List<Integer> published = new ArrayList<>();
+
+        processor.submit(0, () -> {
+            Thread.sleep(50);
+            return 1;
+        }, published::add, Assertions::fail);
+        processor.submit(1, () -> 2, result -> {
+            published.add(result);
+            processor.submit(1, () -> 3, published::add, Assertions::fail);
+        }, Assertions::fail);
+        processor.drain();
+        processor.shutdown();
+        Assertions.assertEquals(3, published.size());
+        Assertions.assertTrue(published.containsAll(Arrays.asList(1, 2, 3)));
+    }
+}
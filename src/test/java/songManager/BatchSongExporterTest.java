@@ -0,0 +1,58 @@
+package songManager;
+
+import Document.LSDSavFile;
+import Document.TestSavFiles;
+import Document.SongDecoder;
+import Document.SongFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import utils.RomUtilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+class BatchSongExporterTest {
+    @Test
+    void export_roundTrips() throws Exception {
+        String song = new File(Objects.requireNonNull(
+                getClass().getClassLoader().getResource("triangle_waves.lsdprj")).getFile()).getAbsolutePath();
+        byte[] romImage = new byte[RomUtilities.BANK_SIZE * RomUtilities.BANK_COUNT];
+        Arrays.fill(romImage, (byte) -1);
+        LSDSavFile savFile = TestSavFiles.empty();
+        for (int i = 0; i < 5; ++i) {
+            savFile.addSongFromFile(song, romImage);
+        }
+
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+        int[] songs = { 0, 1, 2, 3, 4 };
+        File[] files = new File[songs.length];
+        for (int i = 0; i < songs.length; ++i) {
+            files[i] = new File(directory, i + ".lsdprj");
+            files[i].deleteOnExit();
+            // Stale contents must be truncated.
+            Files.write(files[i].toPath(), new byte[0x40000]);
+        }
+        int[] lastDone = { 0 };
+        Map<File, IOException> failures = new BatchSongExporter(3).export(savFile, romImage, songs, files,
+                (done, total) -> lastDone[0] = done);
+        Assertions.assertTrue(failures.isEmpty());
+        Assertions.assertEquals(songs.length, lastDone[0]);
+
+        byte[] expected = new byte[SongDecoder.SONG_SIZE];
+        savFile.decodeSong(0, new SongDecoder(), expected, 0);
+        for (File file : files) {
+            Assertions.assertEquals(Files.size(new File(song).toPath()), file.length());
+            Assertions.assertEquals(savFile.getBlocksUsed(0), SongFile.read(file).blockCount());
+            LSDSavFile imported = TestSavFiles.empty();
+            imported.addSongFromFile(file.getAbsolutePath(), romImage);
+            byte[] actual = new byte[SongDecoder.SONG_SIZE];
+            imported.decodeSong(0, new SongDecoder(), actual, 0);
+            Assertions.assertArrayEquals(expected, actual);
+        }
+    }
+}
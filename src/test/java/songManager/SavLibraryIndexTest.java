@@ -0,0 +1,52 @@
+package songManager;
+
+import Document.LSDSavFile;
+import Document.TestSavFiles;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Objects;
+
+class SavLibraryIndexTest {
+    @Test
+    void scan_findsSongsAndSurvivesRoundTrip() throws Exception {
+        String song = new File(Objects.requireNonNull(
+                getClass().getClassLoader().getResource("triangle_waves.lsdprj")).getFile()).getAbsolutePath();
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+        File subDirectory = new File(directory, "backups");
+        Assertions.assertTrue(subDirectory.mkdir());
+        subDirectory.deleteOnExit();
+
+        for (int i = 0; i < 3; ++i) {
+            LSDSavFile savFile = TestSavFiles.empty();
+            for (int j = 0; j <= i; ++j) {
+                savFile.addSongFromFile(song, null);
+            }
+            File file = new File(i == 0 ? directory : subDirectory, i + ".sav");
+            file.deleteOnExit();
+            savFile.saveAs(file.getAbsolutePath());
+        }
+
+        SavLibraryIndex index = SavLibraryIndex.scan(directory, null);
+        Assertions.assertEquals(3, index.savCount());
+        List<SavLibraryIndex.Song> songs = index.find("tri", 2);
+        Assertions.assertEquals(6, songs.size());
+        Assertions.assertTrue(index.find("tri", 3).isEmpty());
+        for (SavLibraryIndex.Song found : songs) {
+            Assertions.assertTrue(found.isValid());
+            Assertions.assertEquals(songs.get(0).contentHash(), found.contentHash());
+        }
+        Assertions.assertEquals(6, index.withContentHash(songs.get(0).contentHash()).size());
+
+        File indexFile = File.createTempFile("lsdpatcher", ".idx");
+        indexFile.deleteOnExit();
+        index.write(indexFile);
+        SavLibraryIndex read = SavLibraryIndex.read(indexFile);
+        Assertions.assertEquals(index.songs().toString(), read.songs().toString());
+        Assertions.assertEquals(index.songs().toString(), SavLibraryIndex.scan(directory, read).songs().toString());
+    }
+}
@@ -0,0 +1,51 @@
+package songManager;
+
+import Document.LSDSavFile;
+import Document.TestSavFiles;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import utils.RomUtilities;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+class SavPackingPlannerTest {
+    @Test
+    void plan_usesFewestSavs() throws Exception {
+        File song = new File(Objects.requireNonNull(
+                getClass().getClassLoader().getResource("triangle_waves.lsdprj")).getFile());
+        List<File> songs = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            songs.add(song);
+        }
+        byte[] romImage = new byte[RomUtilities.BANK_SIZE * RomUtilities.BANK_COUNT];
+        Arrays.fill(romImage, (byte) -1);
+
+        SavPackingPlanner planner = new SavPackingPlanner(TestSavFiles.empty(), romImage);
+        List<SavPackingPlanner.Image> plan = planner.plan(songs);
+        Assertions.assertEquals(planner.lowerBound(plan), plan.size());
+        int plannedSongs = 0;
+        for (SavPackingPlanner.Image image : plan) {
+            Assertions.assertTrue(image.blockCount() <= 0xbf);
+            plannedSongs += image.songs().size();
+        }
+        Assertions.assertEquals(songs.size(), plannedSongs);
+
+        File directory = Files.createTempDirectory("lsdpatcher").toFile();
+        directory.deleteOnExit();
+        planner.write(plan, directory, "set");
+        for (int i = 1; i <= plan.size(); ++i) {
+            File savFile = new File(directory, String.format("set-%02d.sav", i));
+            File romFile = new File(directory, String.format("set-%02d.gb", i));
+            savFile.deleteOnExit();
+            romFile.deleteOnExit();
+            LSDSavFile sav = new LSDSavFile();
+            sav.loadFromSav(savFile.getAbsolutePath());
+            Assertions.assertEquals(plan.get(i - 1).songs().size() * 10, sav.usedBlockCount());
+        }
+    }
+}